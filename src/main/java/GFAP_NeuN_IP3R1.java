@@ -1,3 +1,13 @@
+import GFAP_NeuN_IP3R1_Tools.BitMask3D;
+import GFAP_NeuN_IP3R1_Tools.Cellpose.Cellpose;
+import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposeMetrics;
+import GFAP_NeuN_IP3R1_Tools.CellsCache;
+import GFAP_NeuN_IP3R1_Tools.DistanceMap;
+import GFAP_NeuN_IP3R1_Tools.DotsCellsRelations;
+import GFAP_NeuN_IP3R1_Tools.DotsPopulation;
+import GFAP_NeuN_IP3R1_Tools.ParameterSweep;
+import GFAP_NeuN_IP3R1_Tools.Preview;
+import GFAP_NeuN_IP3R1_Tools.QualityCheck;
 import GFAP_NeuN_IP3R1_Tools.Tools;
 import ij.*;
 import ij.gui.Roi;
@@ -7,27 +17,40 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.text.SimpleDateFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.Objects3DIntPopulation;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 
 
 /**
@@ -40,6 +63,8 @@ import org.apache.commons.lang.ArrayUtils;
 public class GFAP_NeuN_IP3R1 implements PlugIn {
 
     private GFAP_NeuN_IP3R1_Tools.Tools tools = new Tools();
+    private String outDirResults, cacheDir;
+    private int indexCellsCh, indexDotsCh;
        
     public void run(String arg) {
         try {
@@ -56,8 +81,11 @@ public class GFAP_NeuN_IP3R1 implements PlugIn {
             String fileExt = tools.findImageType(imageDir);
             ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
             if (imageFiles.isEmpty()) {
-                IJ.showMessage("Error", "No images found with " + fileExt + " extension");
-                return;
+                // Folder can be watched before the microscope writes its first image
+                String msg = fileExt.isEmpty() ? "No images found" : "No images found with " + fileExt + " extension";
+                if (!IJ.showMessageWithCancel("Watch folder", msg + " in " + imageDir + "\nWatch folder and analyze images as they arrive?"))
+                    return;
+                tools.watchFolder = true;
             }
             
             // Create OME-XML metadata store of the latest schema version
@@ -67,96 +95,404 @@ public class GFAP_NeuN_IP3R1 implements PlugIn {
             IMetadata meta = service.createOMEXMLMetadata();
             ImageProcessorReader reader = new ImageProcessorReader();
             reader.setMetadataStore(meta);
-            reader.setId(imageFiles.get(0));
-            
-            // Find image calibration
-            tools.findImageCalib(meta);
+            // Keep pyramid levels inside their series instead of listing them as series
+            reader.setFlattenedResolutions(false);
             
-            // Find channel names
-            String[] channelNames = tools.findChannels(imageFiles.get(0), meta, reader);
-            
-            // Generate dialog box
-            String[] channels = tools.dialog(imageDir, channelNames);
-            if (channels == null) {
-                IJ.showStatus("Plugin canceled");
-                return;
+            // Parameters are asked once first image arrives if folder is empty
+            BufferedWriter results = null;
+            if (!imageFiles.isEmpty()) {
+                results = setup(imageDir, imageFiles, meta, reader);
+                if (results == null) {
+                    IJ.showStatus("Plugin canceled");
+                    return;
+                }
             }
             
-            // Create output folder
-            String outDirResults = imageDir + File.separator + "Results_" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + File.separator;
-            File outDir = new File(outDirResults);
-            if (!Files.exists(Paths.get(outDirResults))) {
-                outDir.mkdir();
+            // Escape cancels running Cellpose processes
+            IJ.resetEscape();
+            if (tools.watchFolder) {
+                // Analyze images already there and new ones as they are written by the microscope
+                results = watchFolder(imageDir, fileExt, imageFiles, meta, reader, results);
+            } else {
+                for (String f: imageFiles)
+                    analyzeFile(f, imageDir, meta, reader, results);
             }
-            
-            // Write headers results for results files
-            FileWriter fwResults = new FileWriter(outDirResults + "Results.csv", false);
-            BufferedWriter results = new BufferedWriter(fwResults);
-            if (tools.detectAstro)
-                results.write("Image name\tImage vol (µm3)\tImage-ROI vol (µm3)\tAstrocytes volume (µm3)\t"
-                    + "IP3R1 dots volume inside astrocytes (µm3)\tIP3R1 dots volume outside astrocytes (µm3)\n");
-            else
-                results.write("Image name\tImage vol (µm3)\tImage-ROI vol (µm3)\tNeurons volume (µm3)\t"
-                    + "IP3R1 dots volume inside neurons (µm3)\tIP3R1 dots volume outside neurons (µm3)\n");
-            results.flush();
-            
-            for (String f: imageFiles) {
-                String rootName = FilenameUtils.getBaseName(f);
-                tools.print("--- ANALYZING IMAGE " + rootName + " ------");
-                reader.setId(f);
+            if (results != null)
+                results.close();
+        } catch (IOException | DependencyException | ServiceException | FormatException ex) {
+            Logger.getLogger(GFAP_NeuN_IP3R1.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            tools.releaseBuffers();
+        }
+        tools.print("All done!");
+    }
+    
+    
+    /**
+     * Read calibration and channels from first image, ask parameters and create results file
+     * Return null if canceled
+     */
+    private BufferedWriter setup(String imageDir, List<String> imageFiles, IMetadata meta, ImageProcessorReader reader) 
+            throws DependencyException, ServiceException, FormatException, IOException {
+        reader.setId(imageFiles.get(0));
+        
+        // Find image calibration
+        tools.findImageCalib(meta);
+        
+        // Find channel names
+        String[] channelNames = tools.findChannels(imageFiles.get(0), meta, reader);
+        
+        // Generate dialog box
+        String[] channels = tools.dialog(imageDir, channelNames);
+        if (channels == null)
+            return(null);
+        
+        // Tune parameters on a downsampled image
+        if (tools.preview) {
+            Preview preview = new Preview(tools, imageFiles, ArrayUtils.indexOf(channelNames, channels[0]), 
+                    ArrayUtils.indexOf(channelNames, channels[1]));
+            if (!preview.run())
+                return(null);
+        }
+        
+        // Create output folder
+        outDirResults = imageDir + File.separator + "Results_" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + File.separator;
+        File outDir = new File(outDirResults);
+        if (!Files.exists(Paths.get(outDirResults))) {
+            outDir.mkdir();
+        }
+        indexCellsCh = ArrayUtils.indexOf(channelNames, channels[0]);
+        indexDotsCh = ArrayUtils.indexOf(channelNames, channels[1]);
+        cacheDir = tools.useCellsCache ? imageDir + "Cache" : null;
+        
+        // Write headers results for results files
+        FileWriter fwResults = new FileWriter(outDirResults + (tools.sweep ? "Sweep.csv" : "Results.csv"), false);
+        BufferedWriter results = new BufferedWriter(fwResults);
+        if (tools.sweep)
+            new ParameterSweep(tools, results).writeHeaders();
+        else if (tools.detectAstro)
+            results.write("Image name\tSeries name\tImage vol (µm3)\tImage-ROI vol (µm3)\tAstrocytes volume (µm3)\t"
+                + "IP3R1 dots volume inside astrocytes (µm3)\tIP3R1 dots volume outside astrocytes (µm3)\t"
+                + "IP3R1 dots integrated intensity inside astrocytes\tIP3R1 dots mean intensity inside astrocytes\t"
+                + "IP3R1 dots integrated intensity outside astrocytes\tIP3R1 dots mean intensity outside astrocytes\tQuality check\tStatus\n");
+        else
+            results.write("Image name\tSeries name\tImage vol (µm3)\tImage-ROI vol (µm3)\tNeurons volume (µm3)\t"
+                + "IP3R1 dots volume inside neurons (µm3)\tIP3R1 dots volume outside neurons (µm3)\t"
+                + "IP3R1 dots integrated intensity inside neurons\tIP3R1 dots mean intensity inside neurons\t"
+                + "IP3R1 dots integrated intensity outside neurons\tIP3R1 dots mean intensity outside neurons\t"
+                + "Cellpose status\tCellpose attempts\tCellpose time (s)\tQuality check\tStatus\n");
+        results.flush();
+        return(results);
+    }
+    
+    
+    /**
+     * Analyze all series of an image file and write their results rows
+     */
+    private void analyzeFile(String f, String imageDir, IMetadata meta, ImageProcessorReader reader, BufferedWriter results) 
+            throws FormatException, IOException {
+        String rootName = FilenameUtils.getBaseName(f);
+        tools.print("--- ANALYZING IMAGE " + rootName + " ------");
+        reader.setId(f);
+        int nbSeries = reader.getSeriesCount();
+        
+        // Series are analyzed concurrently as long as they fit in memory
+        // Cellpose processes are bounded separately by the Cellpose pool
+        int nbWorkers = 1;
+        if (nbSeries > 1 && !tools.sweep) {
+            long seriesMemory = 1;
+            for (int s = 0; s < nbSeries; s++)
+                seriesMemory = Math.max(seriesMemory, tools.estimateSeriesMemory(reader, s));
+            Runtime runtime = Runtime.getRuntime();
+            long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            nbWorkers = (int)Math.max(1, Math.min(Math.min(nbSeries, runtime.availableProcessors()), freeMemory / seriesMemory));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(nbWorkers);
+        try {
+            List<Future<String>> rows = new ArrayList<>();
+            List<String> seriesNames = new ArrayList<>();
+            for (int s = 0; s < nbSeries; s++) {
+                final int series = s;
+                String seriesName = tools.findSeriesName(meta, s);
+                seriesNames.add(seriesName);
+                String imageName = (nbSeries > 1) ? rootName + "_" + seriesName : rootName;
                 
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setSplitChannels(true);
-                options.setQuiet(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
+                // Each series has its own parameters copy and calibration
+                Tools seriesTools = tools.duplicate();
+                if (tools.useSeriesCalib)
+                    seriesTools.findImageCalib(meta, s);
                 
                 // Check if ROIs file exists, keep rois to clear regions containing "artefacts"
-                String roiName = imageDir + File.separator + rootName; 
-                roiName = new File(roiName + ".zip").exists() ? roiName + ".zip" : roiName + ".roi";
-                ArrayList<Roi> rois = new ArrayList<>();
-                if (new File(roiName).exists()) {
-                    RoiManager rm = new RoiManager(false);
-                    rm.reset();
-                    rm.runCommand("Open", roiName);
-                    Collections.addAll(rois, rm.getRoisAsArray());
-                }
-                
-                // Analyze cells channel
-                tools.print("- Analyzing cells channel -");
-                int indexCh = ArrayUtils.indexOf(channelNames, channels[0]);
-                ImagePlus imgCells = BF.openImagePlus(options)[indexCh];
-                Objects3DIntPopulation cellsPop = tools.detectCells(imgCells, rois);
-                
-                // Analyze IP3R1 dots channel
-                tools.print("- Analyzing IP3R1 dots channel -");
-                indexCh = ArrayUtils.indexOf(channelNames, channels[1]);
-                ImagePlus imgDots = BF.openImagePlus(options)[indexCh];
-                Objects3DIntPopulation dotsPop = tools.detectDots(imgDots, rois);
+                String roiName = findRoiFile(imageDir, rootName, imageName);
+                ArrayList<Roi> rois = loadRois(roiName);
                 
-                // Find dots inside and outside cells
-                tools.print("- Finding dots inside and outside cells -");
-                List<Objects3DIntPopulation> dotsInOutCells = tools.findDotsInOutCells(dotsPop, cellsPop, imgDots);
-                Objects3DIntPopulation dotsInCellsPop = dotsInOutCells.get(0);
-                Objects3DIntPopulation dotsOutCellsPop = dotsInOutCells.get(1);
-                
-                // Write results
-                tools.print("- Writing and drawing results -");
-                double imgVol = imgDots.getWidth() * imgDots.getHeight() * imgDots.getNSlices() * tools.pixVol;
-                double roisVol = tools.getRoisVolume(rois, imgDots);
-                results.write(rootName+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+tools.findPopVolume(cellsPop)+"\t"+
-                        tools.findPopVolume(dotsInCellsPop)+"\t"+tools.findPopVolume(dotsOutCellsPop)+"\n");
-                results.flush();
+                rows.add(executor.submit(() -> analyzeSeries(seriesTools, reader, f, series, imageName, seriesName, roiName, rois, results)));
+            }
+            
+            // Write results rows in series order
+            for (int s = 0; s < nbSeries; s++) {
+                String line;
+                try {
+                    line = rows.get(s).get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(GFAP_NeuN_IP3R1.class.getName()).log(Level.SEVERE, null, ex);
+                    Throwable cause = (ex instanceof ExecutionException && ex.getCause() != null) ? ex.getCause() : ex;
+                    tools.print("Series " + seriesNames.get(s) + " failed: " + cause);
+                    line = tools.sweep ? null : emptyRow(rootName, seriesNames.get(s), "Failed: " + cause.toString().replaceAll("\\s+", " "));
+                }
+                if (line != null) {
+                    results.write(line);
+                    results.flush();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    
+    /**
+     * Results row of a series without measures, only its status
+     */
+    private String emptyRow(String rootName, String seriesName, String status) {
+        // Measures and quality check columns, plus Cellpose columns for neurons
+        int nbEmpty = tools.detectAstro ? 10 : 13;
+        return(rootName+"\t"+seriesName+StringUtils.repeat("\t", nbEmpty)+"\t"+status+"\n");
+    }
+    
+    
+    /**
+     * Watch images folder and analyze each image once its size stops changing
+     * If results is null, calibration, channels and parameters are read from first stable image
+     * Stop with Escape, or after watchIdleTime minutes without new image
+     * Return results file, null if no image arrived or parameters dialog was canceled
+     */
+    private BufferedWriter watchFolder(String imageDir, String fileExt, List<String> imageFiles, IMetadata meta, ImageProcessorReader reader,
+            BufferedWriter results) throws DependencyException, ServiceException, FormatException, IOException {
+        // Images waiting to be stable, with their last size and time of last size change
+        Map<String, long[]> pending = new LinkedHashMap<>();
+        Set<String> done = new HashSet<>();
+        for (String f: imageFiles)
+            pending.put(f, new long[]{-1, 0});
+        
+        long watchStart = System.currentTimeMillis();
+        long lastActivity = watchStart;
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Paths.get(imageDir).register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            tools.print("Watching " + imageDir + " for new images, press Escape to stop");
+            // Cellpose consumes Escape pressed while it runs, and reports it instead
+            while (!IJ.escapePressed() && !Cellpose.canceledSince(watchStart)) {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event: key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, rescan folder
+                            if (fileExt.isEmpty())
+                                fileExt = tools.findImageType(imageDir);
+                            ArrayList<String> files = tools.findImages(imageDir, fileExt);
+                            for (String f: files) {
+                                if (!done.contains(f))
+                                    pending.putIfAbsent(f, new long[]{-1, 0});
+                            }
+                            continue;
+                        }
+                        String name = event.context().toString();
+                        String f = imageDir + name;
+                        // Folder was empty, extension of first image is the one watched
+                        String ext = FilenameUtils.getExtension(name);
+                        if (fileExt.isEmpty() && tools.isImageType(ext) && !name.startsWith("."))
+                            fileExt = ext;
+                        if (ext.equals(fileExt) && !name.startsWith(".") && !done.contains(f))
+                            pending.putIfAbsent(f, new long[]{-1, 0});
+                    }
+                    key.reset();
+                }
                 
-                // Draw results
-                tools.drawResults(cellsPop, dotsInCellsPop, dotsOutCellsPop, imgCells, imgDots, outDirResults+rootName+".tif");
-                tools.closeImage(imgDots);
-                tools.closeImage(imgCells);
+                // Analyze oldest image whose size did not change for watchStableTime
+                long now = System.currentTimeMillis();
+                String ready = null;
+                for (Map.Entry<String, long[]> entry: pending.entrySet()) {
+                    long size = new File(entry.getKey()).length();
+                    long[] state = entry.getValue();
+                    if (size != state[0]) {
+                        state[0] = size;
+                        state[1] = now;
+                    } else if (ready == null && size > 0 && now - state[1] >= tools.watchStableTime * 1000) {
+                        ready = entry.getKey();
+                    }
+                }
+                if (ready != null) {
+                    pending.remove(ready);
+                    done.add(ready);
+                    try {
+                        if (results == null) {
+                            // First image of an empty folder
+                            results = setup(imageDir, Collections.singletonList(ready), meta, reader);
+                            if (results == null) {
+                                IJ.showStatus("Plugin canceled");
+                                break;
+                            }
+                            // Dialog may have been answered while Escape was pressed
+                            IJ.resetEscape();
+                        }
+                        analyzeFile(ready, imageDir, meta, reader, results);
+                    } catch (FormatException | IOException ex) {
+                        // Keep watching, a single unreadable file does not stop the session
+                        Logger.getLogger(GFAP_NeuN_IP3R1.class.getName()).log(Level.SEVERE, ready, ex);
+                    }
+                    lastActivity = System.currentTimeMillis();
+                } else if (pending.isEmpty() && results != null && !tools.watchFolder) {
+                    // Watching was unchecked in parameters dialog, stop once images there are analyzed
+                    break;
+                } else if (pending.isEmpty() && tools.watchIdleTime > 0 && now - lastActivity > tools.watchIdleTime * 60000) {
+                    tools.print("No new image for " + tools.watchIdleTime + " min, stop watching");
+                    break;
+                }
             }
-            results.close();
-        } catch (IOException | DependencyException | ServiceException | FormatException ex) {
-            Logger.getLogger(GFAP_NeuN_IP3R1.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
-        tools.print("All done!");
+        return(results);
+    }
+    
+    
+    /**
+     * Find ROIs file of a series, or of the whole image file
+     */
+    private String findRoiFile(String imageDir, String rootName, String imageName) {
+        for (String name: new String[]{imageName, rootName}) {
+            String roiName = imageDir + File.separator + name;
+            for (String ext: new String[]{".zip", ".roi"}) {
+                if (new File(roiName + ext).exists())
+                    return(roiName + ext);
+            }
+        }
+        return(imageDir + File.separator + rootName + ".roi");
+    }
+    
+    
+    /**
+     * Load ROIs from file, if it exists
+     */
+    private ArrayList<Roi> loadRois(String roiName) {
+        ArrayList<Roi> rois = new ArrayList<>();
+        if (new File(roiName).exists()) {
+            RoiManager rm = new RoiManager(false);
+            rm.reset();
+            rm.runCommand("Open", roiName);
+            Collections.addAll(rois, rm.getRoisAsArray());
+        }
+        return(rois);
+    }
+    
+    
+    /**
+     * Analyze one series of an image file
+     * Return its results row, or null in sweep mode
+     */
+    private String analyzeSeries(Tools tools, ImageProcessorReader reader, String imageFile, int series, String imageName, String seriesName,
+            String roiName, ArrayList<Roi> rois, BufferedWriter results) throws FormatException, IOException {
+        tools.print("--- ANALYZING SERIES " + imageName + " ------");
+        
+        // Sweep parameters only
+        if (tools.sweep) {
+            ImagePlus imgCells = tools.openSeriesChannel(reader, series, indexCellsCh, imageName);
+            ImagePlus imgDots = tools.openSeriesChannel(reader, series, indexDotsCh, imageName);
+            new ParameterSweep(tools, results).run(imageName, imgCells, imgDots, rois);
+            tools.releaseImage(imgCells);
+            tools.releaseImage(imgDots);
+            return(null);
+        }
+        
+        // Quick check on sampled planes and tiles, series failing it are not analyzed
+        String qcStatus = "";
+        if (tools.qcCheck) {
+            String qcFailure = new QualityCheck(tools).check(reader, series, new int[]{indexCellsCh, indexDotsCh}, new String[]{"cells", "dots"});
+            if (qcFailure != null) {
+                tools.print("Series skipped by quality check: " + qcFailure);
+                return(FilenameUtils.getBaseName(imageFile)+"\t"+seriesName+"\t\t\t\t\t\t\t\t\t"+(tools.detectAstro ? "" : "\t\t\t")+"\t"+qcFailure+"\tSkipped\n");
+            }
+            qcStatus = "OK";
+        }
+        
+        // Analyze cells channel
+        tools.print("- Analyzing cells channel -");
+        ImagePlus imgCells = tools.openSeriesChannel(reader, series, indexCellsCh, imageName);
+        CellsCache cellsCache = (cacheDir != null) ? new CellsCache(tools, cacheDir) : null;
+        Objects3DIntPopulation cellsPop = null;
+        String cellsKey = null;
+        if (cellsCache != null) {
+            cellsKey = cellsCache.getKey(imageFile, roiName, series, indexCellsCh);
+            cellsPop = cellsCache.load(cellsKey, imgCells.getWidth(), imgCells.getHeight(), imgCells.getNSlices());
+        }
+        String cellposeStatus = "Cached\t0\t0";
+        if (cellsPop != null) {
+            System.out.println("Nb cellular objects loaded from cache: " + cellsPop.getNbObjects());
+        } else {
+            // Cellpose runs on a lower pyramid level when the file has one
+            ImagePlus imgCellsLevel = (!tools.detectAstro && tools.getCellposeScale() > 1) ?
+                    tools.openSeriesLevel(reader, series, indexCellsCh, imageName, tools.getCellposeScale()) : null;
+            cellsPop = tools.detectCells(imgCells, imgCellsLevel, rois);
+            if (imgCellsLevel != null)
+                tools.closeImage(imgCellsLevel);
+            if (!tools.detectAstro) {
+                CellposeMetrics metrics = tools.cellposeMetrics;
+                cellposeStatus = metrics.getStatus()+"\t"+metrics.getNbAttempts()+"\t"+metrics.getWallTime();
+                // Skip series if Cellpose failed, timed out or was canceled
+                if (!metrics.isOk()) {
+                    tools.releaseImage(imgCells);
+                    return(FilenameUtils.getBaseName(imageFile)+"\t"+seriesName+"\t\t\t\t\t\t\t\t\t\t"+cellposeStatus+"\t"+qcStatus+"\tSkipped\n");
+                }
+            }
+            if (cellsCache != null) {
+                // Backend fallback is known once cells were filtered
+                cellsKey = cellsCache.getKey(imageFile, roiName, series, indexCellsCh);
+                cellsCache.save(cellsKey, cellsPop, imgCells.getWidth(), imgCells.getHeight(), imgCells.getNSlices());
+            }
+        }
+        
+        // Analyze IP3R1 dots channel
+        tools.print("- Analyzing IP3R1 dots channel -");
+        ImagePlus imgDots = tools.openSeriesChannel(reader, series, indexDotsCh, imageName);
+        DotsPopulation dotsPop = tools.detectDots(imgDots, rois);
+        
+        // Find dots inside and outside cells
+        tools.print("- Finding dots inside and outside cells -");
+        List<DotsPopulation> dotsInOutCells = tools.findDotsInOutCells(dotsPop, cellsPop, imgDots);
+        DotsPopulation dotsInCellsPop = dotsInOutCells.get(0);
+        DotsPopulation dotsOutCellsPop = dotsInOutCells.get(1);
+        
+        // Assign dots to cells
+        if (tools.exportRelations) {
+            tools.print("- Assigning dots to cells -");
+            DotsCellsRelations relations = new DotsCellsRelations(tools, cellsPop, imgDots.getWidth(), imgDots.getHeight(), imgDots.getNSlices());
+            relations.assignDots(dotsPop);
+            
+            // Signed distance of dots to cells surface
+            BitMask3D cellsMask = BitMask3D.fromPopulation(cellsPop, imgDots.getWidth(), imgDots.getHeight(), imgDots.getNSlices());
+            DistanceMap distMap = DistanceMap.compute(tools, cellsMask);
+            relations.sampleDistances(distMap);
+            distMap.release();
+            
+            relations.writeCellsTable(outDirResults+imageName+"_cells.csv", imageName);
+            relations.writeDotsTable(outDirResults+imageName+"_dots.csv", imageName);
+            relations.release();
+        }
+        
+        // Write results
+        tools.print("- Writing and drawing results -");
+        double imgVol = imgDots.getWidth() * imgDots.getHeight() * imgDots.getNSlices() * tools.pixVol;
+        double roisVol = tools.getRoisVolume(rois, imgDots);
+        String row = FilenameUtils.getBaseName(imageFile)+"\t"+seriesName+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+tools.findPopVolume(cellsPop)+"\t"+
+                tools.findPopVolume(dotsInCellsPop)+"\t"+tools.findPopVolume(dotsOutCellsPop)+"\t"+
+                dotsInCellsPop.getIntensitySum()+"\t"+dotsInCellsPop.getIntensityMean()+"\t"+
+                dotsOutCellsPop.getIntensitySum()+"\t"+dotsOutCellsPop.getIntensityMean()+
+                (tools.detectAstro ? "" : "\t"+cellposeStatus)+"\t"+qcStatus+"\tOK\n";
+        
+        // Draw results
+        tools.drawResults(cellsPop, dotsInCellsPop, dotsOutCellsPop, imgCells, imgDots, outDirResults+imageName+".tif");
+        tools.releaseImage(imgDots);
+        tools.releaseImage(imgCells);
+        return(row);
     }
 }
@@ -0,0 +1,241 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Bit-packed 3D binary mask, one bit per voxel
+ * Each slice starts on a new word, so slices can be processed in parallel
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class BitMask3D {
+
+    public final int width;
+    public final int height;
+    public final int depth;
+    private final int wordsPerSlice;
+    private final long[] words;
+
+
+    public BitMask3D(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.wordsPerSlice = (width*height + 63) >>> 6;
+        this.words = new long[wordsPerSlice*depth];
+    }
+
+
+    /**
+     * Create mask with voxels different from 0 in image
+     */
+    public static BitMask3D fromImage(ImagePlus img) {
+        BitMask3D mask = new BitMask3D(img.getWidth(), img.getHeight(), img.getNSlices());
+        ImageStack stack = img.getStack();
+        IntStream.range(0, mask.depth).parallel().forEach(z -> mask.setSlice(z, stack.getProcessor(z+1)));
+        return(mask);
+    }
+
+
+    /**
+     * Create mask with voxels greater than or equal to threshold in image
+     */
+    public static BitMask3D fromThreshold(ImagePlus img, double threshold) {
+        BitMask3D mask = new BitMask3D(img.getWidth(), img.getHeight(), img.getNSlices());
+        ImageStack stack = img.getStack();
+        IntStream.range(0, mask.depth).parallel().forEach(z -> 
+            VoxelKernels.thresholdToBits(stack.getPixels(z+1), threshold, mask.words, z*mask.wordsPerSlice, mask.width*mask.height));
+        return(mask);
+    }
+
+
+    /**
+     * Create 2D mask with pixels different from 0 in processor
+     */
+    public static BitMask3D fromProcessor(ImageProcessor ip) {
+        BitMask3D mask = new BitMask3D(ip.getWidth(), ip.getHeight(), 1);
+        mask.setSlice(0, ip);
+        return(mask);
+    }
+
+
+    /**
+     * Create mask with voxels of all objects in population
+     */
+    public static BitMask3D fromPopulation(Objects3DIntPopulation pop, int width, int height, int depth) {
+        BitMask3D mask = new BitMask3D(width, height, depth);
+        for (Object3DInt obj: pop.getObjects3DInt())
+            mask.add(obj);
+        return(mask);
+    }
+
+
+    private void setSlice(int z, ImageProcessor ip) {
+        VoxelKernels.nonZeroToBits(ip.getPixels(), words, z*wordsPerSlice, width*height);
+    }
+
+
+    /**
+     * Set voxels of object in mask
+     */
+    public void add(Object3DInt obj) {
+        for (Object3DPlane plane: obj.getObject3DPlanes()) {
+            for (VoxelInt v: plane.getVoxels())
+                set(v.getX(), v.getY(), v.getZ());
+        }
+    }
+
+
+    private int index(int x, int y) {
+        return(x + y*width);
+    }
+
+
+    public boolean get(int x, int y, int z) {
+        int i = index(x, y);
+        return((words[z*wordsPerSlice + (i >>> 6)] & (1L << i)) != 0);
+    }
+
+
+    public void set(int x, int y, int z) {
+        int i = index(x, y);
+        words[z*wordsPerSlice + (i >>> 6)] |= 1L << i;
+    }
+
+
+    public void clear(int x, int y, int z) {
+        int i = index(x, y);
+        words[z*wordsPerSlice + (i >>> 6)] &= ~(1L << i);
+    }
+
+
+    private void checkSize(BitMask3D mask) {
+        if (mask.width != width || mask.height != height || (mask.depth != depth && mask.depth != 1))
+            throw new IllegalArgumentException("Masks dimensions differ");
+    }
+
+
+    /**
+     * Keep voxels also set in mask
+     * A 2D mask is applied to every slice
+     */
+    public BitMask3D and(BitMask3D mask) {
+        checkSize(mask);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int offset = z*wordsPerSlice;
+            int maskOffset = (mask.depth == 1) ? 0 : offset;
+            VoxelKernels.and(words, offset, mask.words, maskOffset, wordsPerSlice);
+        });
+        return(this);
+    }
+
+
+    /**
+     * Add voxels set in mask
+     * A 2D mask is applied to every slice
+     */
+    public BitMask3D or(BitMask3D mask) {
+        checkSize(mask);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int offset = z*wordsPerSlice;
+            int maskOffset = (mask.depth == 1) ? 0 : offset;
+            VoxelKernels.or(words, offset, mask.words, maskOffset, wordsPerSlice);
+        });
+        return(this);
+    }
+
+
+    /**
+     * Remove voxels set in mask
+     * A 2D mask is applied to every slice
+     */
+    public BitMask3D andNot(BitMask3D mask) {
+        checkSize(mask);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int offset = z*wordsPerSlice;
+            int maskOffset = (mask.depth == 1) ? 0 : offset;
+            VoxelKernels.andNot(words, offset, mask.words, maskOffset, wordsPerSlice);
+        });
+        return(this);
+    }
+
+
+    /**
+     * Number of voxels set in mask
+     */
+    public long count() {
+        return(IntStream.range(0, depth).parallel().mapToLong(this::count).sum());
+    }
+
+
+    /**
+     * Number of voxels set in slice z
+     */
+    public long count(int z) {
+        return(VoxelKernels.count(words, z*wordsPerSlice, wordsPerSlice));
+    }
+
+
+    public BitMask3D duplicate() {
+        BitMask3D mask = new BitMask3D(width, height, depth);
+        System.arraycopy(words, 0, mask.words, 0, words.length);
+        return(mask);
+    }
+
+
+    /**
+     * Nearest-neighbour resampling in XY to new width and height
+     */
+    public BitMask3D resizeXY(int newWidth, int newHeight) {
+        BitMask3D mask = new BitMask3D(newWidth, newHeight, depth);
+        int[] srcX = new int[newWidth];
+        for (int x = 0; x < newWidth; x++)
+            srcX[x] = Math.min(width-1, (int)((x + 0.5) * width / newWidth));
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            for (int y = 0; y < newHeight; y++) {
+                int sy = Math.min(height-1, (int)((y + 0.5) * height / newHeight));
+                for (int x = 0; x < newWidth; x++) {
+                    if (get(srcX[x], sy, z))
+                        mask.set(x, y, z);
+                }
+            }
+        });
+        return(mask);
+    }
+
+
+    /**
+     * Paint voxels set in mask with value in image of same dimensions
+     */
+    public void paint(ImagePlus img, double value) {
+        ImageStack stack = img.getStack();
+        IntStream.range(0, depth).parallel().forEach(z -> paintSlice(z, stack.getProcessor(z+1), value));
+    }
+
+
+    /**
+     * Paint voxels set in slice z with value in processor
+     */
+    public void paintSlice(int z, ImageProcessor ip, double value) {
+        VoxelKernels.fillMasked(ip.getPixels(), words, z*wordsPerSlice, width*height, value);
+    }
+
+
+    /**
+     * Convert mask into an image, voxels set in mask are painted with value
+     */
+    public ImagePlus toImagePlus(String title, int bitDepth, double value, ImageBufferPool pool) {
+        ImagePlus img = (pool != null) ? pool.createImage(title, width, height, depth, bitDepth) :
+                IJ.createImage(title, bitDepth+"-bit black", width, height, depth);
+        paint(img, value);
+        return(img);
+    }
+}
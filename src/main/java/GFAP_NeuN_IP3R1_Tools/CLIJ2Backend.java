@@ -0,0 +1,74 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * GPU operations with CLIJ2
+ * The device is shared by all series analyzed concurrently, so calls are serialized
+ * Results are pulled into new images, the buffer pool is not used
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class CLIJ2Backend implements ComputeBackend {
+
+    private final CLIJ2 clij2;
+
+
+    /**
+     * Throws if no OpenCL device can be initialized
+     */
+    public CLIJ2Backend() {
+        clij2 = CLIJ2.getInstance();
+        System.out.println("CLIJ2 device: " + clij2.getGPUName());
+    }
+
+
+    @Override
+    public String getName() {
+        return("CLIJ2");
+    }
+
+
+    @Override
+    public ImagePlus median2D(ImagePlus img, double sizeXY, ImageBufferPool pool) {
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img); 
+            ClearCLBuffer imgCLMed = clij2.create(imgCL);
+            clij2.median3DSliceBySliceBox(imgCL, imgCLMed, sizeXY, sizeXY);
+            ImagePlus imgMed = clij2.pull(imgCLMed);
+            clij2.release(imgCL);
+            clij2.release(imgCLMed);
+            return(imgMed);
+        }
+    }
+
+
+    @Override
+    public ImagePlus threshold(ImagePlus img, String method, ImageBufferPool pool) {
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLBin = clij2.create(imgCL);
+            clij2.automaticThreshold(imgCL, imgCLBin, method);
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCL);
+            clij2.release(imgCLBin);
+            return(imgBin);
+        }
+    }
+
+
+    @Override
+    public ImagePlus DOG(ImagePlus img, double size1XY, double size1Z, double size2XY, double size2Z, ImageBufferPool pool) {
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLDOG = clij2.create(imgCL);
+            clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1XY, size1XY, size1Z, size2XY, size2XY, size2Z);
+            ImagePlus imgDOG = clij2.pull(imgCLDOG);
+            clij2.release(imgCL);
+            clij2.release(imgCLDOG);
+            return(imgDOG);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.GaussianBlur3D;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * CPU operations, slices in parallel
+ * Same conventions as CLIJ2 and parameters sweep, so that median and threshold results are identical:
+ * box median with edge voxels repeated, 256 bins histogram between stack min and max (0-255 for 8-bit) for thresholding,
+ * results converted back to input bit depth with clipping
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class CPUBackend implements ComputeBackend {
+
+    public static final int NB_BINS = 256;
+
+
+    @Override
+    public String getName() {
+        return("CPU");
+    }
+
+
+    /**
+     * Median of (2*sizeXY+1)^2 box in each slice, like CLIJ2 median3DSliceBySliceBox
+     */
+    @Override
+    public ImagePlus median2D(ImagePlus img, double sizeXY, ImageBufferPool pool) {
+        int width = img.getWidth(), height = img.getHeight(), r = (int)sizeXY;
+        ImagePlus imgMed = createImage(img, pool);
+        ImageStack stack = img.getStack(), stackMed = imgMed.getStack();
+        IntStream.range(0, img.getNSlices()).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1), ipMed = stackMed.getProcessor(z+1);
+            float[] pixels = new float[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = ip.getf(i);
+            float[] box = new float[(2*r+1) * (2*r+1)];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int n = 0;
+                    for (int dy = -r; dy <= r; dy++) {
+                        int row = Math.min(height-1, Math.max(0, y+dy)) * width;
+                        for (int dx = -r; dx <= r; dx++)
+                            box[n++] = pixels[row + Math.min(width-1, Math.max(0, x+dx))];
+                    }
+                    ipMed.setf(x + y*width, select(box, n, n/2));
+                }
+            }
+        });
+        return(imgMed);
+    }
+
+
+    /**
+     * Value of rank k in the first n values of a, which are reordered
+     */
+    private static float select(float[] a, int n, int k) {
+        int left = 0, right = n - 1;
+        while (left < right) {
+            float pivot = a[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    float t = a[i];
+                    a[i++] = a[j];
+                    a[j--] = t;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                break;
+        }
+        return(a[k]);
+    }
+
+
+    @Override
+    public ImagePlus threshold(ImagePlus img, String method, ImageBufferPool pool) {
+        double[] range = getRange(img);
+        int[] histogram = getHistogram(img, range[0], range[1]);
+        int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+        double thValue = getThresholdValue(range, bin);
+        ImagePlus imgBin = BitMask3D.fromThreshold(img, thValue).toImagePlus(img.getTitle(), img.getBitDepth(), 1, pool);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+
+
+    @Override
+    public ImagePlus DOG(ImagePlus img, double size1XY, double size1Z, double size2XY, double size2Z, ImageBufferPool pool) {
+        ImagePlus img1 = toFloat(img);
+        ImagePlus img2 = img1.duplicate();
+        GaussianBlur3D.blur(img1, size1XY, size1XY, size1Z);
+        GaussianBlur3D.blur(img2, size2XY, size2XY, size2Z);
+
+        ImagePlus imgDOG = createImage(img, pool);
+        ImageStack stack1 = img1.getStack(), stack2 = img2.getStack(), stackDOG = imgDOG.getStack();
+        double max = (img.getBitDepth() == 8) ? 255 : (img.getBitDepth() == 16) ? 65535 : Double.MAX_VALUE;
+        boolean clip = img.getBitDepth() != 32;
+        IntStream.range(0, img.getNSlices()).parallel().forEach(z -> {
+            float[] p1 = (float[])stack1.getPixels(z+1), p2 = (float[])stack2.getPixels(z+1);
+            ImageProcessor ipDOG = stackDOG.getProcessor(z+1);
+            for (int i = 0; i < p1.length; i++) {
+                double v = p1[i] - p2[i];
+                ipDOG.setf(i, clip ? (float)Math.round(Math.min(max, Math.max(0, v))) : (float)v);
+            }
+        });
+        img1.close();
+        img2.close();
+        return(imgDOG);
+    }
+
+
+    /**
+     * Black image with same size, bit depth and calibration as img, from pool if any
+     */
+    private ImagePlus createImage(ImagePlus img, ImageBufferPool pool) {
+        ImagePlus imgOut = (pool != null) ? pool.createImage(img.getTitle(), img.getWidth(), img.getHeight(), img.getNSlices(), img.getBitDepth()) :
+                IJ.createImage(img.getTitle(), img.getBitDepth()+"-bit black", img.getWidth(), img.getHeight(), img.getNSlices());
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+
+
+    private ImagePlus toFloat(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        ImageStack stackFloat = new ImageStack(img.getWidth(), img.getHeight());
+        for (int z = 1; z <= img.getNSlices(); z++)
+            stackFloat.addSlice(stack.getProcessor(z).convertToFloat().duplicate());
+        return(new ImagePlus(img.getTitle(), stackFloat));
+    }
+
+
+    /**
+     * Histogram range used for thresholding, as CLIJ2: full range for 8-bit images, stack min and max otherwise
+     */
+    public static double[] getRange(ImagePlus img) {
+        if (img.getBitDepth() == 8)
+            return(new double[]{0, 255});
+        return(getMinMax(img));
+    }
+
+
+    /**
+     * Threshold value for threshold bin, voxels in bins above it are foreground
+     */
+    public static double getThresholdValue(double[] range, int bin) {
+        return(range[0] + (bin + 1) * (range[1] - range[0]) / NB_BINS);
+    }
+
+
+    /**
+     * Stack min and max, slices in parallel
+     */
+    public static double[] getMinMax(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        double[][] minMax = new double[img.getNSlices()][];
+        IntStream.range(0, img.getNSlices()).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                float v = ip.getf(i);
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            minMax[z] = new double[]{min, max};
+        });
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double[] mm: minMax) {
+            min = Math.min(min, mm[0]);
+            max = Math.max(max, mm[1]);
+        }
+        return(new double[]{min, max});
+    }
+
+
+    /**
+     * Stack histogram with NB_BINS bins between min and max
+     */
+    public static int[] getHistogram(ImagePlus img, double min, double max) {
+        ImageStack stack = img.getStack();
+        double scale = (max > min) ? NB_BINS / (max - min) : 0;
+        int[][] slicesHist = new int[img.getNSlices()][];
+        IntStream.range(0, img.getNSlices()).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            int[] hist = new int[NB_BINS];
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                int bin = (int)((ip.getf(i) - min) * scale);
+                hist[Math.min(bin, NB_BINS - 1)]++;
+            }
+            slicesHist[z] = hist;
+        });
+        int[] histogram = new int[NB_BINS];
+        for (int[] hist: slicesHist)
+            for (int b = 0; b < NB_BINS; b++)
+                histogram[b] += hist[b];
+        return(histogram);
+    }
+}
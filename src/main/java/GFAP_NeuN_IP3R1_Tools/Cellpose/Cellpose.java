@@ -4,20 +4,32 @@ import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposeTaskSettings;
 import ij.IJ;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import static java.io.File.separatorChar;
 
 
 public class Cellpose {
 
-    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+    // Time of last Escape press, cancels all processes started before it
+    private static volatile long cancelTime = 0;
+
+    /**
+     * Check if Cellpose was canceled with Escape since time
+     * Cellpose consumes the Escape press, callers waiting on Escape must check this too
+     */
+    public static boolean canceledSince(long time) {
+        return cancelTime >= time;
+    }
+
+    static void execute(List<String> options, CellposeTaskSettings settings, CellposeMetrics metrics) throws IOException, InterruptedException {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -59,8 +71,8 @@ public class Cellpose {
                 // The last part needs to be sent as a single string, otherwise it does not run
                 String cmdString = cellpose_args_cmd.toString().replace(",","");
 
-                // finally add to cmd
-                cmd.add(cmdString.substring(1, cmdString.length()-1));
+                // finally add to cmd, bash is replaced by python so killing the process kills cellpose
+                cmd.add("exec " + cmdString.substring(1, cmdString.length()-1));
             }
 
         } else if (settings.envType.equals("venv")) { // venv
@@ -78,7 +90,15 @@ public class Cellpose {
 
         System.out.println(cmd.toString().replace(",", ""));
         ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        // Limit threads of each process when several run concurrently
+        if (settings.nbThreads > 0) {
+            String nbThreads = Integer.toString(settings.nbThreads);
+            pb.environment().put("OMP_NUM_THREADS", nbThreads);
+            pb.environment().put("MKL_NUM_THREADS", nbThreads);
+            pb.environment().put("OPENBLAS_NUM_THREADS", nbThreads);
+        }
 
+        long start = System.currentTimeMillis();
         Process p = pb.start();
         Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
             @Override
@@ -87,6 +107,7 @@ public class Cellpose {
                 try {
                     for (String line = stdIn.readLine(); line != null; ) {
                         System.out.println(line);
+                        metrics.parseLine(line);
                         line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
                     }
                 } catch (IOException e) {
@@ -97,16 +118,76 @@ public class Cellpose {
         t.setDaemon(true);
         t.start();
 
-        p.waitFor();
+        // Wait for process, polling for timeout and cancellation
+        long timeout = settings.timeout * 1000;
+        int lastProgress = -1;
+        try {
+            while (!p.waitFor(1, TimeUnit.SECONDS)) {
+                metrics.wallTime = System.currentTimeMillis() - start;
+                if (IJ.escapePressed()) {
+                    // Reset the flag so that processes of later series are not canceled
+                    cancelTime = System.currentTimeMillis();
+                    IJ.resetEscape();
+                }
+                if (cancelTime >= start) {
+                    metrics.status = CellposeMetrics.CANCELED;
+                    break;
+                }
+                if (timeout > 0 && metrics.wallTime > timeout) {
+                    metrics.status = CellposeMetrics.TIMEOUT;
+                    break;
+                }
+                if (metrics.progress != lastProgress) {
+                    lastProgress = metrics.progress;
+                    IJ.showStatus("Cellpose " + lastProgress + "%");
+                }
+            }
+        } catch (InterruptedException e) {
+            metrics.status = CellposeMetrics.CANCELED;
+            destroyTree(p);
+            throw e;
+        }
+        metrics.wallTime = System.currentTimeMillis() - start;
+
+        if (!metrics.isOk()) {
+            destroyTree(p);
+            System.out.println("Runner " + settings.cellposeEnvDirectory + " stopped: " + metrics.status + " after " + metrics.getWallTime() + " s");
+            return;
+        }
 
         int exitValue = p.exitValue();
+        metrics.exitValue = exitValue;
 
         if (exitValue != 0) {
+            metrics.status = CellposeMetrics.FAILED;
             System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
         } else {
-            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
+            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished in " + metrics.getWallTime() + " s");
         }
 
     }
 
+    /**
+     * Kill process and all its descendants
+     * Process handles only exist from Java 9, on Java 8 only the direct child is killed
+     * (on unix it is python itself, bash being replaced with exec)
+     */
+    static void destroyTree(Process p) {
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Method destroy = handleClass.getMethod("destroyForcibly");
+            Stream<?> descendants = (Stream<?>) Process.class.getMethod("descendants").invoke(p);
+            descendants.forEach(h -> {
+                try {
+                    destroy.invoke(h);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println(e.getMessage());
+                }
+            });
+        } catch (ReflectiveOperationException e) {
+            // Java 8, no process handles
+        }
+        p.destroyForcibly();
+    }
+
 }
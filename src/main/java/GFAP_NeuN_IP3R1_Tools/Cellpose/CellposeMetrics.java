@@ -0,0 +1,89 @@
+package GFAP_NeuN_IP3R1_Tools.Cellpose;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Progress, timing and outcome of a Cellpose segmentation, parsed from the process output
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class CellposeMetrics {
+
+    public static final String OK = "OK";
+    public static final String FAILED = "Failed";
+    public static final String TIMEOUT = "Timeout";
+    public static final String CANCELED = "Canceled";
+
+    // tqdm progress bars, e.g. " 45%|####5     | 9/20 [00:01<00:02]"
+    private static final Pattern PROGRESS = Pattern.compile("(\\d{1,3})%\\|");
+    // Cellpose summary, e.g. ">>>> TOTAL TIME 12.34 sec"
+    private static final Pattern TOTAL_TIME = Pattern.compile("TOTAL TIME\\s+([0-9.]+)\\s*sec");
+
+    volatile int progress = 0;
+    volatile double totalTime = Double.NaN;
+    volatile long wallTime = 0;
+    volatile int exitValue = -1;
+    volatile String status = OK;
+    volatile int nbAttempts = 0;
+
+
+    /**
+     * Update metrics from one line of Cellpose output
+     */
+    void parseLine(String line) {
+        Matcher m = PROGRESS.matcher(line);
+        if (m.find())
+            progress = Math.min(100, Integer.parseInt(m.group(1)));
+        m = TOTAL_TIME.matcher(line);
+        if (m.find())
+            totalTime = Double.parseDouble(m.group(1));
+    }
+
+
+    /**
+     * Reset metrics before a new attempt
+     */
+    void startAttempt() {
+        progress = 0;
+        totalTime = Double.NaN;
+        wallTime = 0;
+        exitValue = -1;
+        status = OK;
+        nbAttempts++;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * Time reported by Cellpose in s, NaN if not printed
+     */
+    public double getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * Process run time in s
+     */
+    public double getWallTime() {
+        return wallTime / 1000.0;
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public int getNbAttempts() {
+        return nbAttempts;
+    }
+
+    public boolean isOk() {
+        return status.equals(OK);
+    }
+}
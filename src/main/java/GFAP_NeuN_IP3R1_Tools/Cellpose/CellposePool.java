@@ -0,0 +1,66 @@
+package GFAP_NeuN_IP3R1_Tools.Cellpose;
+
+import ij.ImagePlus;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Bounds the number of Cellpose processes running at the same time
+ * Each job runs in its own workspace, so any number of callers can share the pool
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class CellposePool {
+
+    private static Semaphore permits = new Semaphore(1, true);
+    private static int nbProcesses = 1;
+
+
+    /**
+     * Set max number of concurrent Cellpose processes
+     * Jobs already running keep their permit until they finish
+     */
+    public static synchronized void setNbProcesses(int n) {
+        n = Math.max(1, n);
+        if (n != nbProcesses) {
+            nbProcesses = n;
+            permits = new Semaphore(n, true);
+        }
+    }
+
+
+    public static synchronized int getNbProcesses() {
+        return nbProcesses;
+    }
+
+
+    private static synchronized Semaphore getPermits() {
+        return permits;
+    }
+
+
+    /**
+     * Segment imp with Cellpose once a process slot is free
+     * Failed or timed out runs are retried settings.nbRetries times, canceled runs are not
+     * Return null if all attempts failed, metrics hold the last attempt status
+     */
+    public static ImagePlus run(CellposeTaskSettings settings, ImagePlus imp, CellposeMetrics metrics) throws InterruptedException {
+        Semaphore slots = getPermits();
+        slots.acquire();
+        try {
+            ImagePlus imgOut = null;
+            while (imgOut == null && metrics.nbAttempts <= settings.nbRetries) {
+                metrics.startAttempt();
+                imgOut = new CellposeSegmentImgPlusAdvanced(settings, imp, metrics).run();
+                if (metrics.status.equals(CellposeMetrics.CANCELED))
+                    break;
+                if (imgOut == null && metrics.nbAttempts <= settings.nbRetries)
+                    System.out.println("Cellpose " + metrics.status + " on " + imp.getTitle() + ", retrying");
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            return imgOut;
+        } finally {
+            slots.release();
+        }
+    }
+}
@@ -11,6 +11,9 @@ import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import net.imagej.ImageJ;
@@ -25,27 +28,35 @@ public class CellposeSegmentImgPlusAdvanced {
     CellposeTaskSettings settings;
     ImagePlus imp;
     ImagePlus cellpose_imp;
+    CellposeMetrics metrics;
     
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
+        this(settings, imp, new CellposeMetrics());
+    }
+    
+    public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp, CellposeMetrics metrics) {
         this.settings = settings;
         this.imp = imp;
+        this.metrics = metrics;
+    }
+    
+    public CellposeMetrics getMetrics() {
+        return metrics;
     }
     
     public ImagePlus run() {
         
         Calibration cal = imp.getCalibration();
 
-        // Create temp folder to temporarily save the current time-point of the imp
+        // Create a unique temp folder for this job to temporarily save the current time-point of the imp
+        // Concurrent jobs, in this JVM or in other processes, each get their own folder
         String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = Files.createTempDirectory(Paths.get(tempDir), "cellposeTemp").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
 
         // Add temp folder to the settings
@@ -61,6 +72,7 @@ public class CellposeSegmentImgPlusAdvanced {
         // Settings are done, we can now process the imp with Cellpose
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
+        cellposeTask.setMetrics(metrics);
         
         try {
             // Can't process time-lapse directly, so we'll save one time-point after another
@@ -93,10 +105,18 @@ public class CellposeSegmentImgPlusAdvanced {
 
             // Run CellPose
             cellposeTask.run();
+            if (!metrics.isOk())
+                return null;
 
             // Open all the cellpose_mask and store each imp within an ArrayList
             ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
             for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+                // Masks are missing if Cellpose crashed without an error exit value
+                if (!cellpose_masks_paths.get(t_idx - 1).exists()) {
+                    System.out.println("Cellpose mask not found: " + cellpose_masks_paths.get(t_idx - 1));
+                    metrics.status = CellposeMetrics.FAILED;
+                    return null;
+                }
                 ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
                 // make sure to make a 16-bit imp
                 // (issue with time-lapse, first frame have less than 254 objects and latest have more)
@@ -116,16 +136,23 @@ public class CellposeSegmentImgPlusAdvanced {
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
-            }
-            cellposeTempDir.delete();
-       
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            metrics.status = CellposeMetrics.CANCELED;
+            cellpose_imp = null;
         } catch (Exception e) {
             e.printStackTrace();
+            metrics.status = CellposeMetrics.FAILED;
+            cellpose_imp = null;
+        } finally {
+            // Delete this job's folder only, including files left by a crashed run
+            File[] contents = cellposeTempDir.listFiles();
+            if (contents != null) {
+                for (File f : contents) {
+                    f.delete();
+                }
+            }
+            cellposeTempDir.delete();
         }
         return cellpose_imp;
     }
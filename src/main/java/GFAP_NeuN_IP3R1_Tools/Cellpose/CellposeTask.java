@@ -7,11 +7,16 @@ import java.util.ArrayList;
 public class CellposeTask {
     
     protected CellposeTaskSettings settings;
+    protected CellposeMetrics metrics = new CellposeMetrics();
 
     public void setSettings(CellposeTaskSettings settings) {
         this.settings = settings;
     }
 
+    public void setMetrics(CellposeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void run() throws Exception {
         ArrayList<String> options = new ArrayList<>();
 
@@ -78,6 +83,6 @@ public class CellposeTask {
         options.add("--no_npy");
         
         
-        Cellpose.execute(options, settings, null);
+        Cellpose.execute(options, settings, metrics);
     }
 }
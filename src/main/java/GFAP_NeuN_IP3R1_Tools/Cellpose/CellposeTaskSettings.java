@@ -24,6 +24,11 @@ public class CellposeTaskSettings {
     boolean omni = false;
     boolean cluster = false;
     boolean verbose = false;
+    // Threads used by each Cellpose process, 0 lets torch use all cores
+    int nbThreads = 0;
+    // Process time limit in s, 0 for no limit, and number of new attempts after a failure or timeout
+    long timeout = 0;
+    int nbRetries = 0;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -122,5 +127,20 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings setNbThreads(int nbThreads) {
+        this.nbThreads = nbThreads;
+        return this;
+    }
+    
+    public CellposeTaskSettings setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+    
+    public CellposeTaskSettings setNbRetries(int nbRetries) {
+        this.nbRetries = nbRetries;
+        return this;
+    }
        
 }
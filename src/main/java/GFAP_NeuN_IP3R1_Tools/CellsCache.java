@@ -0,0 +1,180 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * On-disk cache of filtered cells populations
+ * Entries are keyed by image fingerprint and cells detection parameters only,
+ * so changing dots parameters reuses cells detected in a previous run
+ * Cells label image is stored run-length encoded and gzipped
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class CellsCache {
+
+    private static final int MAGIC = 0x43454c31; // "CEL1"
+
+    private final Tools tools;
+    private final File cacheDir;
+
+
+    public CellsCache(Tools tools, String cacheDir) {
+        this.tools = tools;
+        this.cacheDir = new File(cacheDir);
+    }
+
+
+    /**
+     * Cache key from image file and series, ROIs file and cells detection parameters
+     * Astrocytes are filtered by the compute backend, so the requested backend and its CPU fallback are part of the key
+     */
+    public String getKey(String imageFile, String roiFile, int series, int channel) {
+        StringBuilder key = new StringBuilder();
+        key.append(fingerprint(imageFile)).append('|').append(fingerprint(roiFile)).append('|').append(series).append('|').append(channel);
+        key.append('|').append(tools.detectAstro);
+        if (tools.detectAstro) {
+            key.append('|').append(tools.astroThMethod).append('|').append(tools.medianSize).append('|').append(tools.computeBackend);
+            // CPU fallback of CLIJ2 is only known once filtering initialized it, the key never opens an OpenCL context
+            String backendName = tools.getComputeBackendName();
+            if (backendName != null && !backendName.equals(tools.computeBackend))
+                key.append('|').append(backendName);
+        } else
+            key.append('|').append(tools.cellposeModel).append('|').append(tools.cellposeDiam).append('|').append(tools.cellposeStitchTh);
+        if (!tools.detectAstro && tools.cellposeDownsample)
+            key.append('|').append(tools.cellposeTargetDiam);
+        key.append('|').append(tools.minCellVol).append('|').append(tools.cal.pixelWidth).append('|').append(tools.cal.pixelDepth);
+        return(hash(key.toString()));
+    }
+
+
+    private String fingerprint(String file) {
+        File f = new File(file);
+        if (!f.exists())
+            return("none");
+        return(f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified());
+    }
+
+
+    private String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest)
+                hex.append(String.format("%02x", b));
+            return(hex.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            return(Integer.toHexString(key.hashCode()));
+        }
+    }
+
+
+    private File getFile(String key) {
+        return(new File(cacheDir, key + ".cells"));
+    }
+
+
+    /**
+     * Load cells population, null if not in cache or dimensions differ
+     */
+    public Objects3DIntPopulation load(String key, int width, int height, int depth) {
+        File file = getFile(key);
+        if (!file.exists())
+            return(null);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != width || in.readInt() != height || in.readInt() != depth)
+                return(null);
+            int bitDepth = in.readInt();
+            ImagePlus imgLabels = tools.createImage("Cells", width, height, depth, bitDepth);
+            ImageStack stack = imgLabels.getStack();
+            for (int z = 0; z < depth; z++) {
+                ImageProcessor ip = stack.getProcessor(z+1);
+                int nbRuns = in.readInt();
+                for (int r = 0; r < nbRuns; r++) {
+                    int start = in.readInt();
+                    int length = in.readInt();
+                    float label = in.readInt();
+                    for (int i = start; i < start + length; i++)
+                        ip.setf(i, label);
+                }
+            }
+            Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+            pop.setVoxelSizeXY(tools.cal.pixelWidth);
+            pop.setVoxelSizeZ(tools.cal.pixelDepth);
+            tools.releaseImage(imgLabels);
+            return(pop);
+        } catch (IOException ex) {
+            System.out.println("Cells cache entry " + file.getName() + " unreadable: " + ex.getMessage());
+            return(null);
+        }
+    }
+
+
+    /**
+     * Save cells population, written to a temporary file first so concurrent runs never read partial entries
+     */
+    public void save(String key, Objects3DIntPopulation pop, int width, int height, int depth) {
+        cacheDir.mkdirs();
+        int bitDepth = (pop.getNbObjects() < 65535) ? 16 : 32;
+        ImagePlus imgLabels = tools.createImage("Cells", width, height, depth, bitDepth);
+        pop.drawInImage(ImageHandler.wrap(imgLabels));
+        ImageStack stack = imgLabels.getStack();
+
+        File file = getFile(key);
+        File tmpFile = new File(cacheDir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(depth);
+            out.writeInt(bitDepth);
+            int size = width*height;
+            int[] runs = new int[3*size/2 + 3];
+            for (int z = 0; z < depth; z++) {
+                ImageProcessor ip = stack.getProcessor(z+1);
+                int nbRuns = 0;
+                int i = 0;
+                while (i < size) {
+                    int label = (int)ip.getf(i);
+                    int start = i;
+                    while (i < size && (int)ip.getf(i) == label)
+                        i++;
+                    if (label != 0) {
+                        runs[3*nbRuns] = start;
+                        runs[3*nbRuns+1] = i - start;
+                        runs[3*nbRuns+2] = label;
+                        nbRuns++;
+                    }
+                }
+                out.writeInt(nbRuns);
+                for (int r = 0; r < 3*nbRuns; r++)
+                    out.writeInt(runs[r]);
+            }
+        } catch (IOException ex) {
+            System.out.println("Cells cache entry " + file.getName() + " not saved: " + ex.getMessage());
+            tmpFile.delete();
+            tools.releaseImage(imgLabels);
+            return;
+        }
+        tools.releaseImage(imgLabels);
+        file.delete();
+        if (!tmpFile.renameTo(file))
+            tmpFile.delete();
+    }
+}
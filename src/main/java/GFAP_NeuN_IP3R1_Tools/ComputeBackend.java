@@ -0,0 +1,30 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+
+
+/**
+ * Filtering and thresholding operations run on GPU (CLIJ2) or CPU
+ * Results have the input bit depth, binary images are 0 / non-zero
+ * Result images are created from pool when the backend allocates them on CPU, pool may be null
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public interface ComputeBackend {
+
+    String getName();
+
+    /**
+     * 2D median filtering of each slice, box radius sizeXY
+     */
+    ImagePlus median2D(ImagePlus img, double sizeXY, ImageBufferPool pool);
+
+    /**
+     * Automatic thresholding on stack histogram
+     */
+    ImagePlus threshold(ImagePlus img, String method, ImageBufferPool pool);
+
+    /**
+     * 3D difference of Gaussians, sigmas in pixels
+     */
+    ImagePlus DOG(ImagePlus img, double size1XY, double size1Z, double size2XY, double size2Z, ImageBufferPool pool);
+}
@@ -0,0 +1,77 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+
+
+/**
+ * Compute backend selection, created on first use so that no OpenCL context is opened
+ * for runs that never filter on GPU (sweep on cached cells, neurons only...)
+ * CLIJ2 falls back to CPU only if no OpenCL device can be initialized
+ * Backends are not mixed within a run: median and threshold match exactly, but DoG Gaussian kernels differ slightly
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public final class ComputeBackends {
+
+    public static final String[] CHOICES = {"CLIJ2", "CPU"};
+
+    private static CPUBackend cpu = null;
+    private static ComputeBackend clij2 = null;
+    private static boolean clij2Failed = false;
+
+    private ComputeBackends() {
+    }
+
+
+    /**
+     * Backend for choice "CLIJ2" or "CPU"
+     */
+    public static synchronized ComputeBackend get(String choice) {
+        if (choice.equals("CPU"))
+            return(getCPU());
+        ComputeBackend gpu = getCLIJ2();
+        return((gpu != null) ? gpu : getCPU());
+    }
+
+
+    /**
+     * True if an OpenCL device can be used by CLIJ2
+     */
+    public static synchronized boolean hasCLIJ2() {
+        return(getCLIJ2() != null);
+    }
+
+
+    /**
+     * Name of the backend choice resolved to, null while CLIJ2 was not initialized
+     * Never opens an OpenCL context
+     */
+    public static synchronized String getResolvedName(String choice) {
+        if (choice.equals("CPU") || clij2Failed)
+            return(getCPU().getName());
+        return((clij2 != null) ? clij2.getName() : null);
+    }
+
+
+    private static CPUBackend getCPU() {
+        if (cpu == null)
+            cpu = new CPUBackend();
+        return(cpu);
+    }
+
+
+    /**
+     * CLIJ2 backend, null if OpenCL is not available
+     */
+    private static ComputeBackend getCLIJ2() {
+        if (clij2 == null && !clij2Failed) {
+            try {
+                clij2 = new CLIJ2Backend();
+            } catch (Throwable ex) {
+                // Missing OpenCL driver or library: UnsatisfiedLinkError, NoClassDefFoundError, runtime errors
+                clij2Failed = true;
+                IJ.log("CLIJ2 not available, using CPU (" + ex + ")");
+            }
+        }
+        return(clij2);
+    }
+}
@@ -0,0 +1,183 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.stream.IntStream;
+
+
+/**
+ * Calibrated signed 3D Euclidean distance map of a binary mask
+ * Exact separable transform (Felzenszwalb & Huttenlocher lower envelope of parabolas),
+ * run along X, Y then Z with anisotropic voxel sizes, lines of each pass in parallel
+ * Distances are in µm, positive outside mask (distance to nearest mask voxel)
+ * and negative inside mask (distance to nearest voxel outside mask), NaN if mask is empty or full
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class DistanceMap {
+
+    private static final float INF = 1e30f;
+
+    private final Tools tools;
+    private final int width, height, depth;
+    private final ImagePlus imgDist;
+    private final float[][] dist;
+
+
+    private DistanceMap(Tools tools, int width, int height, int depth) {
+        this.tools = tools;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        imgDist = tools.createImage("Distance map", width, height, depth, 32);
+        ImageStack stack = imgDist.getStack();
+        dist = new float[depth][];
+        for (int z = 0; z < depth; z++)
+            dist[z] = (float[])stack.getPixels(z+1);
+    }
+
+
+    /**
+     * Compute signed distance map of mask with tools calibration
+     */
+    public static DistanceMap compute(Tools tools, BitMask3D mask) {
+        DistanceMap map = new DistanceMap(tools, mask.width, mask.height, mask.depth);
+        double pw = tools.cal.pixelWidth, ph = tools.cal.pixelHeight, pd = tools.cal.pixelDepth;
+
+        // Squared distance to mask from outside
+        map.transform(mask, true, map.dist, pw, ph, pd);
+
+        // Squared distance to background from inside, then combine both with sign
+        DistanceMap inside = new DistanceMap(tools, mask.width, mask.height, mask.depth);
+        inside.transform(mask, false, inside.dist, pw, ph, pd);
+        IntStream.range(0, map.depth).parallel().forEach(z -> {
+            for (int y = 0; y < map.height; y++) {
+                for (int x = 0; x < map.width; x++) {
+                    int i = x + y*map.width;
+                    // No voxel to reach (mask empty or full): no distance
+                    float d2 = mask.get(x, y, z) ? inside.dist[z][i] : map.dist[z][i];
+                    float d = (d2 >= INF) ? Float.NaN : (float)Math.sqrt(d2);
+                    map.dist[z][i] = mask.get(x, y, z) ? -d : d;
+                }
+            }
+        });
+        inside.release();
+        return(map);
+    }
+
+
+    /**
+     * Squared EDT to voxels where mask equals feature
+     */
+    private void transform(BitMask3D mask, boolean feature, float[][] d, double pw, double ph, double pd) {
+        int maxLength = Math.max(width, Math.max(height, depth));
+
+        // X pass, initialised from mask
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] f = new float[maxLength], out = new float[maxLength];
+            int[] v = new int[maxLength];
+            double[] zz = new double[maxLength+1];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    f[x] = (mask.get(x, y, z) == feature) ? 0 : INF;
+                edt1D(f, out, width, pw*pw, v, zz);
+                System.arraycopy(out, 0, d[z], y*width, width);
+            }
+        });
+
+        // Y pass
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] f = new float[maxLength], out = new float[maxLength];
+            int[] v = new int[maxLength];
+            double[] zz = new double[maxLength+1];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++)
+                    f[y] = d[z][x + y*width];
+                edt1D(f, out, height, ph*ph, v, zz);
+                for (int y = 0; y < height; y++)
+                    d[z][x + y*width] = out[y];
+            }
+        });
+
+        // Z pass
+        if (depth > 1) {
+            IntStream.range(0, height).parallel().forEach(y -> {
+                float[] f = new float[maxLength], out = new float[maxLength];
+                int[] v = new int[maxLength];
+                double[] zz = new double[maxLength+1];
+                for (int x = 0; x < width; x++) {
+                    int i = x + y*width;
+                    for (int z = 0; z < depth; z++)
+                        f[z] = d[z][i];
+                    edt1D(f, out, depth, pd*pd, v, zz);
+                    for (int z = 0; z < depth; z++)
+                        d[z][i] = out[z];
+                }
+            });
+        }
+    }
+
+
+    /**
+     * 1D squared distance transform of sampled function f with squared spacing sp2
+     * v holds parabolas locations and zz the boundaries between them
+     */
+    private static void edt1D(float[] f, float[] d, int n, double sp2, int[] v, double[] zz) {
+        int k = -1;
+        for (int q = 0; q < n; q++) {
+            if (f[q] >= INF)
+                continue;
+            if (k < 0) {
+                k = 0;
+                v[0] = q;
+                zz[0] = -Double.MAX_VALUE;
+                zz[1] = Double.MAX_VALUE;
+                continue;
+            }
+            double s = intersection(f, v[k], q, sp2);
+            while (s <= zz[k]) {
+                k--;
+                s = intersection(f, v[k], q, sp2);
+            }
+            k++;
+            v[k] = q;
+            zz[k] = s;
+            zz[k+1] = Double.MAX_VALUE;
+        }
+        if (k < 0) {
+            for (int q = 0; q < n; q++)
+                d[q] = INF;
+            return;
+        }
+        int j = 0;
+        for (int q = 0; q < n; q++) {
+            while (zz[j+1] < q)
+                j++;
+            double dq = q - v[j];
+            d[q] = (float)Math.min(INF, sp2*dq*dq + f[v[j]]);
+        }
+    }
+
+
+    private static double intersection(float[] f, int p, int q, double sp2) {
+        return(((f[q] + sp2*q*q) - (f[p] + sp2*p*p)) / (2*sp2*(q - p)));
+    }
+
+
+    /**
+     * Signed distance in µm at voxel (x, y, z), NaN if mask has no voxel to reach
+     */
+    public float getDistance(int x, int y, int z) {
+        x = Math.min(width-1, Math.max(0, x));
+        y = Math.min(height-1, Math.max(0, y));
+        z = Math.min(depth-1, Math.max(0, z));
+        return(dist[z][x + y*width]);
+    }
+
+
+    /**
+     * Give back distance map slices to the buffer pool
+     */
+    public void release() {
+        tools.releaseImage(imgDist);
+    }
+}
@@ -0,0 +1,361 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Spatial relations between dots and cells
+ * Each dot is assigned to the cell label it overlaps the most in the cells label image,
+ * dots outside cells get their nearest cell from a 3D grid index over cells surface voxels
+ * Both steps are linear in number of dots voxels
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class DotsCellsRelations {
+
+    private final Tools tools;
+    private final int width, height, depth;
+    private final double pixelWidth, pixelDepth;
+
+    // Cells label image slices (short[] or float[])
+    private final Object[] labels;
+    private final int maxLabel;
+    private final double[] cellsVol;
+
+    // Grid index over cells surface voxels, bucket b holds voxels surfaceX/Y/Z[gridOffsets[b] .. gridOffsets[b+1]-1]
+    private final double gridSizeUm = 5;
+    private final int gridXY, gridZ, gridNx, gridNy, gridNz;
+    private int[] gridOffsets;
+    private int[] surfaceX, surfaceY, surfaceZ;
+
+    // Dots results
+    private float[] dotsLabel;
+    private double[] dotsX, dotsY, dotsZ, dotsVol, dotsFractionIn, dotsDist, dotsSignedDist;
+    private double[] dotsIntSum, dotsIntMean, dotsIntMax, dotsIntSD;
+    private int[] dotsHost, dotsNearest;
+    private int[] cellsNbDots;
+    private double[] cellsDotsVol;
+
+
+    public DotsCellsRelations(Tools tools, Objects3DIntPopulation cellsPop, int width, int height, int depth) {
+        this.tools = tools;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.pixelWidth = tools.cal.pixelWidth;
+        this.pixelDepth = tools.cal.pixelDepth;
+
+        // Cells label image
+        int max = 0;
+        for (Object3DInt cell: cellsPop.getObjects3DInt())
+            max = Math.max(max, (int)cell.getLabel());
+        maxLabel = max;
+        ImagePlus imgLabels = tools.createImage("Cells labels", width, height, depth, (maxLabel < 65535) ? 16 : 32);
+        cellsPop.drawInImage(ImageHandler.wrap(imgLabels));
+        ImageStack stack = imgLabels.getStack();
+        labels = new Object[depth];
+        for (int z = 0; z < depth; z++)
+            labels[z] = stack.getPixels(z+1);
+        // Keep slices references, image itself is not needed anymore
+        imgLabels.close();
+
+        cellsPop.setVoxelSizeXY(pixelWidth);
+        cellsPop.setVoxelSizeZ(pixelDepth);
+        cellsVol = new double[maxLabel+1];
+        for (Object3DInt cell: cellsPop.getObjects3DInt())
+            cellsVol[(int)cell.getLabel()] = new MeasureVolume(cell).getVolumeUnit();
+
+        gridXY = Math.max(1, (int)Math.round(gridSizeUm / pixelWidth));
+        gridZ = Math.max(1, (int)Math.round(gridSizeUm / pixelDepth));
+        gridNx = (width + gridXY - 1) / gridXY;
+        gridNy = (height + gridXY - 1) / gridXY;
+        gridNz = (depth + gridZ - 1) / gridZ;
+        buildSurfaceIndex();
+    }
+
+
+    /**
+     * Give back cells label image slices to the buffer pool
+     */
+    public void release() {
+        ImageStack stack = new ImageStack(width, height);
+        for (Object pixels: labels)
+            stack.addSlice("", pixels);
+        tools.releaseImage(new ImagePlus("Cells labels", stack));
+    }
+
+
+    private int getLabel(int x, int y, int z) {
+        Object pixels = labels[z];
+        int i = x + y*width;
+        if (pixels instanceof short[])
+            return(((short[])pixels)[i] & 0xffff);
+        return((int)((float[])pixels)[i]);
+    }
+
+
+    private boolean isSurface(int x, int y, int z, int label) {
+        return((x > 0 && getLabel(x-1, y, z) != label) || (x < width-1 && getLabel(x+1, y, z) != label) ||
+               (y > 0 && getLabel(x, y-1, z) != label) || (y < height-1 && getLabel(x, y+1, z) != label) ||
+               (z > 0 && getLabel(x, y, z-1) != label) || (z < depth-1 && getLabel(x, y, z+1) != label));
+    }
+
+
+    private int gridIndex(int x, int y, int z) {
+        return((x / gridXY) + gridNx * ((y / gridXY) + gridNy * (z / gridZ)));
+    }
+
+
+    /**
+     * Find cells surface voxels and sort them by grid bucket
+     */
+    private void buildSurfaceIndex() {
+        // Surface voxels of each slice, packed as x + y*width
+        int[][] slicesSurface = new int[depth][];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            int[] voxels = new int[64];
+            int n = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int label = getLabel(x, y, z);
+                    if (label != 0 && isSurface(x, y, z, label)) {
+                        if (n == voxels.length)
+                            voxels = Arrays.copyOf(voxels, 2*n);
+                        voxels[n++] = x + y*width;
+                    }
+                }
+            }
+            slicesSurface[z] = Arrays.copyOf(voxels, n);
+        });
+
+        // Counting sort into grid buckets
+        int nbBuckets = gridNx * gridNy * gridNz;
+        gridOffsets = new int[nbBuckets + 1];
+        for (int z = 0; z < depth; z++)
+            for (int v: slicesSurface[z])
+                gridOffsets[gridIndex(v % width, v / width, z) + 1]++;
+        for (int b = 0; b < nbBuckets; b++)
+            gridOffsets[b+1] += gridOffsets[b];
+        int nbSurface = gridOffsets[nbBuckets];
+        surfaceX = new int[nbSurface];
+        surfaceY = new int[nbSurface];
+        surfaceZ = new int[nbSurface];
+        int[] next = Arrays.copyOf(gridOffsets, nbBuckets);
+        for (int z = 0; z < depth; z++) {
+            for (int v: slicesSurface[z]) {
+                int x = v % width, y = v / width;
+                int i = next[gridIndex(x, y, z)]++;
+                surfaceX[i] = x;
+                surfaceY[i] = y;
+                surfaceZ[i] = z;
+            }
+            slicesSurface[z] = null;
+        }
+    }
+
+
+    /**
+     * Nearest cell surface voxel to a point given in pixels
+     * Grid shells are visited by increasing distance, only buckets on the faces of each shell,
+     * until no closer voxel can remain in the next shells
+     * Return {label, distance in µm}
+     */
+    private double[] nearestCell(double x, double y, double z) {
+        if (surfaceX.length == 0)
+            return(new double[]{0, Double.NaN});
+        int gx = Math.min(gridNx-1, Math.max(0, (int)(x / gridXY)));
+        int gy = Math.min(gridNy-1, Math.max(0, (int)(y / gridXY)));
+        int gz = Math.min(gridNz-1, Math.max(0, (int)(z / gridZ)));
+        double shellWidth = Math.min(gridXY * pixelWidth, gridZ * pixelDepth);
+        int maxShell = Math.max(gridNx, Math.max(gridNy, gridNz));
+
+        double[] best = {Double.MAX_VALUE, -1};
+        for (int r = 0; r <= maxShell; r++) {
+            int i0 = Math.max(0, gx-r), i1 = Math.min(gridNx-1, gx+r);
+            int j0 = Math.max(0, gy-r), j1 = Math.min(gridNy-1, gy+r);
+            for (int k = Math.max(0, gz-r); k <= Math.min(gridNz-1, gz+r); k++) {
+                boolean faceZ = Math.abs(k-gz) == r;
+                for (int j = j0; j <= j1; j++) {
+                    if (faceZ || Math.abs(j-gy) == r) {
+                        // Whole row lies on the shell
+                        for (int i = i0; i <= i1; i++)
+                            searchBucket(i + gridNx * (j + gridNy * k), x, y, z, best);
+                    } else {
+                        // Only both ends of the row
+                        if (gx-r >= 0)
+                            searchBucket(gx-r + gridNx * (j + gridNy * k), x, y, z, best);
+                        if (gx+r < gridNx)
+                            searchBucket(gx+r + gridNx * (j + gridNy * k), x, y, z, best);
+                    }
+                }
+            }
+            // Voxels in next shells are at least r*shellWidth away
+            double bound = r * shellWidth;
+            if (best[1] >= 0 && best[0] <= bound*bound)
+                break;
+        }
+        int s = (int)best[1];
+        return(new double[]{getLabel(surfaceX[s], surfaceY[s], surfaceZ[s]), Math.sqrt(best[0])});
+    }
+
+
+    /**
+     * Update best {squared distance, surface voxel index} with voxels of grid bucket b
+     */
+    private void searchBucket(int b, double x, double y, double z, double[] best) {
+        for (int s = gridOffsets[b]; s < gridOffsets[b+1]; s++) {
+            double dx = (surfaceX[s] - x) * pixelWidth;
+            double dy = (surfaceY[s] - y) * pixelWidth;
+            double dz = (surfaceZ[s] - z) * pixelDepth;
+            double dist2 = dx*dx + dy*dy + dz*dz;
+            if (dist2 < best[0]) {
+                best[0] = dist2;
+                best[1] = s;
+            }
+        }
+    }
+
+
+    /**
+     * Assign each dot to its host cell and find nearest cell of dots outside cells
+     */
+    public void assignDots(DotsPopulation dotsPop) {
+        int nbDots = dotsPop.getNbObjects();
+        dotsLabel = new float[nbDots];
+        dotsX = new double[nbDots];
+        dotsY = new double[nbDots];
+        dotsZ = new double[nbDots];
+        dotsVol = new double[nbDots];
+        dotsFractionIn = new double[nbDots];
+        dotsDist = new double[nbDots];
+        dotsSignedDist = new double[nbDots];
+        Arrays.fill(dotsSignedDist, Double.NaN);
+        dotsIntSum = new double[nbDots];
+        dotsIntMean = new double[nbDots];
+        dotsIntMax = new double[nbDots];
+        dotsIntSD = new double[nbDots];
+        dotsHost = new int[nbDots];
+        dotsNearest = new int[nbDots];
+        int[] dotsHostVoxels = new int[nbDots];
+
+        IntStream.range(0, nbDots).parallel().forEach(d -> {
+            // Dot voxels count per cell label
+            int[] overlapLabels = new int[4];
+            int[] overlapCounts = new int[4];
+            int nbOverlaps = 0, nbVoxels = 0, nbIn = 0;
+            double sx = 0, sy = 0, sz = 0;
+            for (int i = dotsPop.getFirst(d); i < dotsPop.getEnd(d); i++) {
+                int x = dotsPop.getX(i), y = dotsPop.getY(i), z = dotsPop.getZ(i);
+                sx += x;
+                sy += y;
+                sz += z;
+                nbVoxels++;
+                int label = getLabel(x, y, z);
+                if (label == 0)
+                    continue;
+                nbIn++;
+                int o = 0;
+                while (o < nbOverlaps && overlapLabels[o] != label)
+                    o++;
+                if (o == nbOverlaps) {
+                    if (nbOverlaps == overlapLabels.length) {
+                        overlapLabels = Arrays.copyOf(overlapLabels, 2*nbOverlaps);
+                        overlapCounts = Arrays.copyOf(overlapCounts, 2*nbOverlaps);
+                    }
+                    overlapLabels[o] = label;
+                    nbOverlaps++;
+                }
+                overlapCounts[o]++;
+            }
+            int host = 0, hostVoxels = 0;
+            for (int o = 0; o < nbOverlaps; o++) {
+                if (overlapCounts[o] > hostVoxels) {
+                    host = overlapLabels[o];
+                    hostVoxels = overlapCounts[o];
+                }
+            }
+            dotsLabel[d] = dotsPop.getLabel(d);
+            dotsIntSum[d] = dotsPop.getIntensitySum(d);
+            dotsIntMean[d] = dotsPop.getIntensityMean(d);
+            dotsIntMax[d] = dotsPop.getIntensityMax(d);
+            dotsIntSD[d] = dotsPop.getIntensitySD(d);
+            dotsX[d] = sx / nbVoxels;
+            dotsY[d] = sy / nbVoxels;
+            dotsZ[d] = sz / nbVoxels;
+            dotsVol[d] = nbVoxels * tools.pixVol;
+            dotsFractionIn[d] = (double)nbIn / nbVoxels;
+            dotsHost[d] = host;
+            dotsHostVoxels[d] = hostVoxels;
+            if (host != 0) {
+                dotsNearest[d] = host;
+                dotsDist[d] = 0;
+            } else {
+                double[] nearest = nearestCell(dotsX[d], dotsY[d], dotsZ[d]);
+                dotsNearest[d] = (int)nearest[0];
+                dotsDist[d] = nearest[1];
+            }
+        });
+
+        // Per cell counts
+        cellsNbDots = new int[maxLabel+1];
+        cellsDotsVol = new double[maxLabel+1];
+        for (int d = 0; d < nbDots; d++) {
+            if (dotsHost[d] != 0) {
+                cellsNbDots[dotsHost[d]]++;
+                cellsDotsVol[dotsHost[d]] += dotsHostVoxels[d] * tools.pixVol;
+            }
+        }
+    }
+
+
+    /**
+     * Sample signed distance to cells surface at each dot centroid
+     */
+    public void sampleDistances(DistanceMap distMap) {
+        IntStream.range(0, dotsLabel.length).parallel().forEach(d -> {
+            dotsSignedDist[d] = distMap.getDistance((int)Math.round(dotsX[d]), (int)Math.round(dotsY[d]), (int)Math.round(dotsZ[d]));
+        });
+    }
+
+
+    /**
+     * Write one row per cell with its volume, number and volume of hosted dots and dots density
+     */
+    public void writeCellsTable(String fileName, String imageName) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(fileName, false))) {
+            out.write("Image name\tCell label\tCell volume (µm3)\tNb dots\tDots volume inside cell (µm3)\tDots density (nb/µm3)\n");
+            for (int label = 1; label <= maxLabel; label++) {
+                if (cellsVol[label] == 0)
+                    continue;
+                out.write(imageName+"\t"+label+"\t"+cellsVol[label]+"\t"+cellsNbDots[label]+"\t"+cellsDotsVol[label]+"\t"+
+                        (cellsNbDots[label] / cellsVol[label])+"\n");
+            }
+        }
+    }
+
+
+    /**
+     * Write one row per dot with its centroid, volume, host cell, nearest cell and raw intensity
+     */
+    public void writeDotsTable(String fileName, String imageName) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(fileName, false))) {
+            out.write("Image name\tDot label\tCentroid X (µm)\tCentroid Y (µm)\tCentroid Z (µm)\tDot volume (µm3)\t"
+                    + "Fraction inside cells\tHost cell label\tNearest cell label\tDistance to nearest cell surface (µm)\t"
+                    + "Signed distance to cells surface (µm)\tIntegrated intensity\tMean intensity\tMax intensity\tIntensity SD\n");
+            for (int d = 0; d < dotsLabel.length; d++) {
+                out.write(imageName+"\t"+(int)dotsLabel[d]+"\t"+dotsX[d]*pixelWidth+"\t"+dotsY[d]*pixelWidth+"\t"+dotsZ[d]*pixelDepth+"\t"+
+                        dotsVol[d]+"\t"+dotsFractionIn[d]+"\t"+dotsHost[d]+"\t"+dotsNearest[d]+"\t"+dotsDist[d]+"\t"+dotsSignedDist[d]+"\t"+
+                        dotsIntSum[d]+"\t"+dotsIntMean[d]+"\t"+dotsIntMax[d]+"\t"+dotsIntSD[d]+"\n");
+            }
+        }
+    }
+}
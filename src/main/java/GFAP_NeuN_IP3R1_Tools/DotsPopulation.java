@@ -0,0 +1,430 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Population of small objects stored as packed voxel coordinates, without one Object3DInt per dot
+ * Voxels of all dots are in a single array, packed as x + y*width + z*width*height,
+ * dot d voxels are voxels[offsets[d] .. offsets[d+1]-1] in z, y, x order
+ * Raw intensities of dots voxels are kept in the same order, so intensity statistics need no rescan of the raw stack
+ * Convert to Objects3DIntPopulation only where mcib3d objects are needed
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class DotsPopulation {
+
+    public final int width;
+    public final int height;
+    public final int depth;
+    private final long sliceSize;
+    private final long[] voxels;
+    private final int[] offsets;
+    private final float[] labels;
+    // Raw intensity of each voxel (null without raw image) and per dot sum, sum of squares and max
+    private final float[] intensities;
+    private final double[] intensitySums, intensitySumSqs;
+    private final float[] intensityMaxs;
+
+    // Voxels sorted by plane, built on first plane drawing: plane z voxels are planeVoxels[planeOffsets[z] .. planeOffsets[z+1]-1]
+    private int[] planeOffsets, planeVoxels;
+
+
+    private DotsPopulation(int width, int height, int depth, long[] voxels, int[] offsets, float[] labels, float[] intensities) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.sliceSize = (long)width * height;
+        this.voxels = voxels;
+        this.offsets = offsets;
+        this.labels = labels;
+        this.intensities = intensities;
+        int nbDots = labels.length;
+        intensitySums = new double[nbDots];
+        intensitySumSqs = new double[nbDots];
+        intensityMaxs = new float[nbDots];
+        if (intensities != null) {
+            IntStream.range(0, nbDots).parallel().forEach(d -> {
+                double sum = 0, sumSq = 0;
+                float max = -Float.MAX_VALUE;
+                for (int i = offsets[d]; i < offsets[d+1]; i++) {
+                    float v = intensities[i];
+                    sum += v;
+                    sumSq += (double)v*v;
+                    max = Math.max(max, v);
+                }
+                intensitySums[d] = sum;
+                intensitySumSqs[d] = sumSq;
+                intensityMaxs[d] = max;
+            });
+        }
+    }
+
+
+    /**
+     * Create population from labels image, one dot per label
+     * Foreground voxels of each slice and their raw intensity (if imgRaw is not null) are gathered in parallel,
+     * then sorted by label with a counting sort
+     */
+    public static DotsPopulation fromLabels(ImagePlus imgLabels, ImagePlus imgRaw) {
+        int width = imgLabels.getWidth(), height = imgLabels.getHeight(), depth = imgLabels.getNSlices();
+        ImageStack stack = imgLabels.getStack();
+        ImageStack stackRaw = (imgRaw != null) ? imgRaw.getStack() : null;
+        int[][] slicesIndex = new int[depth][];
+        int[][] slicesLabel = new int[depth][];
+        float[][] slicesValue = new float[depth][];
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            ImageProcessor ipRaw = (stackRaw != null) ? stackRaw.getProcessor(z+1) : null;
+            int[] index = new int[64];
+            int[] label = new int[64];
+            float[] value = new float[64];
+            int n = 0;
+            for (int i = 0; i < width*height; i++) {
+                int l = (int)ip.getf(i);
+                if (l == 0)
+                    continue;
+                if (n == index.length) {
+                    index = Arrays.copyOf(index, 2*n);
+                    label = Arrays.copyOf(label, 2*n);
+                    value = Arrays.copyOf(value, 2*n);
+                }
+                index[n] = i;
+                if (ipRaw != null)
+                    value[n] = ipRaw.getf(i);
+                label[n++] = l;
+            }
+            slicesIndex[z] = Arrays.copyOf(index, n);
+            slicesLabel[z] = Arrays.copyOf(label, n);
+            slicesValue[z] = Arrays.copyOf(value, n);
+        });
+
+        int maxLabel = 0;
+        for (int[] sliceLabel: slicesLabel)
+            for (int l: sliceLabel)
+                maxLabel = Math.max(maxLabel, l);
+        int[] counts = new int[maxLabel+1];
+        for (int[] sliceLabel: slicesLabel)
+            for (int l: sliceLabel)
+                counts[l]++;
+
+        // Labels present in image, in increasing order
+        int[] dotIndex = new int[maxLabel+1];
+        int nbDots = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            dotIndex[l] = (counts[l] > 0) ? nbDots++ : -1;
+        int[] offsets = new int[nbDots+1];
+        float[] labels = new float[nbDots];
+        for (int l = 1; l <= maxLabel; l++) {
+            if (counts[l] > 0) {
+                offsets[dotIndex[l]+1] = counts[l];
+                labels[dotIndex[l]] = l;
+            }
+        }
+        for (int d = 0; d < nbDots; d++)
+            offsets[d+1] += offsets[d];
+
+        long[] voxels = new long[offsets[nbDots]];
+        float[] intensities = (imgRaw != null) ? new float[offsets[nbDots]] : null;
+        int[] next = Arrays.copyOf(offsets, nbDots);
+        long sliceSize = (long)width * height;
+        for (int z = 0; z < depth; z++) {
+            int[] index = slicesIndex[z], label = slicesLabel[z];
+            float[] value = slicesValue[z];
+            for (int v = 0; v < index.length; v++) {
+                int i = next[dotIndex[label[v]]]++;
+                voxels[i] = index[v] + z*sliceSize;
+                if (intensities != null)
+                    intensities[i] = value[v];
+            }
+            slicesIndex[z] = slicesLabel[z] = null;
+            slicesValue[z] = null;
+        }
+        return(new DotsPopulation(width, height, depth, voxels, offsets, labels, intensities));
+    }
+
+
+    public int getNbObjects() {
+        return(labels.length);
+    }
+
+
+    public float getLabel(int d) {
+        return(labels[d]);
+    }
+
+
+    /**
+     * Index of first voxel of dot d
+     */
+    public int getFirst(int d) {
+        return(offsets[d]);
+    }
+
+
+    /**
+     * Index after last voxel of dot d
+     */
+    public int getEnd(int d) {
+        return(offsets[d+1]);
+    }
+
+
+    public int getX(int i) {
+        return((int)(voxels[i] % sliceSize % width));
+    }
+
+
+    public int getY(int i) {
+        return((int)(voxels[i] % sliceSize / width));
+    }
+
+
+    public int getZ(int i) {
+        return((int)(voxels[i] / sliceSize));
+    }
+
+
+    public int getNbVoxels(int d) {
+        return(offsets[d+1] - offsets[d]);
+    }
+
+
+    /**
+     * Number of voxels of all dots
+     */
+    public long getNbVoxels() {
+        return(voxels.length);
+    }
+
+
+    public boolean hasIntensities() {
+        return(intensities != null);
+    }
+
+
+    /**
+     * Integrated raw intensity of dot d
+     */
+    public double getIntensitySum(int d) {
+        return(intensitySums[d]);
+    }
+
+
+    public double getIntensitySumSq(int d) {
+        return(intensitySumSqs[d]);
+    }
+
+
+    public double getIntensityMean(int d) {
+        return(intensitySums[d] / getNbVoxels(d));
+    }
+
+
+    public double getIntensityMax(int d) {
+        return(intensityMaxs[d]);
+    }
+
+
+    /**
+     * Standard deviation of raw intensity in dot d, from sum and sum of squares
+     */
+    public double getIntensitySD(int d) {
+        int n = getNbVoxels(d);
+        double mean = intensitySums[d] / n;
+        return(Math.sqrt(Math.max(0, intensitySumSqs[d] / n - mean*mean)));
+    }
+
+
+    /**
+     * Integrated raw intensity of all dots
+     */
+    public double getIntensitySum() {
+        double sum = 0;
+        for (double dotSum: intensitySums)
+            sum += dotSum;
+        return(sum);
+    }
+
+
+    /**
+     * Mean raw intensity of all dots voxels, 0 without voxels like the volume and integrated intensity
+     */
+    public double getIntensityMean() {
+        return((voxels.length > 0) ? getIntensitySum() / voxels.length : 0);
+    }
+
+
+    /**
+     * Centroid of dot d in pixels
+     */
+    public double[] getCentroid(int d) {
+        double sx = 0, sy = 0, sz = 0;
+        for (int i = offsets[d]; i < offsets[d+1]; i++) {
+            sx += getX(i);
+            sy += getY(i);
+            sz += getZ(i);
+        }
+        int n = getNbVoxels(d);
+        return(new double[]{sx / n, sy / n, sz / n});
+    }
+
+
+    /**
+     * Keep dots with minVoxels <= nb of voxels <= maxVoxels, labels are reset from 1
+     */
+    public DotsPopulation filterSize(double minVoxels, double maxVoxels) {
+        int[] kept = IntStream.range(0, labels.length).filter(d -> getNbVoxels(d) >= minVoxels && getNbVoxels(d) <= maxVoxels).toArray();
+        int[] newOffsets = new int[kept.length+1];
+        float[] newLabels = new float[kept.length];
+        for (int k = 0; k < kept.length; k++) {
+            newOffsets[k+1] = newOffsets[k] + getNbVoxels(kept[k]);
+            newLabels[k] = k + 1;
+        }
+        long[] newVoxels = new long[newOffsets[kept.length]];
+        float[] newIntensities = (intensities != null) ? new float[newVoxels.length] : null;
+        IntStream.range(0, kept.length).parallel().forEach(k -> {
+            System.arraycopy(voxels, offsets[kept[k]], newVoxels, newOffsets[k], getNbVoxels(kept[k]));
+            if (newIntensities != null)
+                System.arraycopy(intensities, offsets[kept[k]], newIntensities, newOffsets[k], getNbVoxels(kept[k]));
+        });
+        return(new DotsPopulation(width, height, depth, newVoxels, newOffsets, newLabels, newIntensities));
+    }
+
+
+    /**
+     * Split dots voxels between inside and outside mask, each part keeps its dot label
+     * Return {inside, outside}
+     */
+    public DotsPopulation[] splitByMask(BitMask3D mask) {
+        int nbDots = labels.length;
+        int[] nbIn = new int[nbDots];
+        IntStream.range(0, nbDots).parallel().forEach(d -> {
+            for (int i = offsets[d]; i < offsets[d+1]; i++)
+                if (mask.get(getX(i), getY(i), getZ(i)))
+                    nbIn[d]++;
+        });
+
+        int nbDotsIn = 0, nbDotsOut = 0;
+        for (int d = 0; d < nbDots; d++) {
+            if (nbIn[d] > 0) nbDotsIn++;
+            if (nbIn[d] < getNbVoxels(d)) nbDotsOut++;
+        }
+        int[] offsetsIn = new int[nbDotsIn+1], offsetsOut = new int[nbDotsOut+1];
+        float[] labelsIn = new float[nbDotsIn], labelsOut = new float[nbDotsOut];
+        int[] dotIn = new int[nbDots], dotOut = new int[nbDots];
+        int in = 0, out = 0;
+        for (int d = 0; d < nbDots; d++) {
+            if (nbIn[d] > 0) {
+                dotIn[d] = in;
+                labelsIn[in] = labels[d];
+                offsetsIn[in+1] = offsetsIn[in] + nbIn[d];
+                in++;
+            }
+            if (nbIn[d] < getNbVoxels(d)) {
+                dotOut[d] = out;
+                labelsOut[out] = labels[d];
+                offsetsOut[out+1] = offsetsOut[out] + getNbVoxels(d) - nbIn[d];
+                out++;
+            }
+        }
+
+        long[] voxelsIn = new long[offsetsIn[nbDotsIn]], voxelsOut = new long[offsetsOut[nbDotsOut]];
+        float[] intensitiesIn = (intensities != null) ? new float[voxelsIn.length] : null;
+        float[] intensitiesOut = (intensities != null) ? new float[voxelsOut.length] : null;
+        IntStream.range(0, nbDots).parallel().forEach(d -> {
+            int nextIn = (nbIn[d] > 0) ? offsetsIn[dotIn[d]] : 0;
+            int nextOut = (nbIn[d] < getNbVoxels(d)) ? offsetsOut[dotOut[d]] : 0;
+            for (int i = offsets[d]; i < offsets[d+1]; i++) {
+                if (mask.get(getX(i), getY(i), getZ(i))) {
+                    if (intensitiesIn != null)
+                        intensitiesIn[nextIn] = intensities[i];
+                    voxelsIn[nextIn++] = voxels[i];
+                } else {
+                    if (intensitiesOut != null)
+                        intensitiesOut[nextOut] = intensities[i];
+                    voxelsOut[nextOut++] = voxels[i];
+                }
+            }
+        });
+        return(new DotsPopulation[]{new DotsPopulation(width, height, depth, voxelsIn, offsetsIn, labelsIn, intensitiesIn),
+                                    new DotsPopulation(width, height, depth, voxelsOut, offsetsOut, labelsOut, intensitiesOut)});
+    }
+
+
+    /**
+     * Mask with voxels of all dots
+     */
+    public BitMask3D toMask() {
+        BitMask3D mask = new BitMask3D(width, height, depth);
+        for (int i = 0; i < voxels.length; i++)
+            mask.set(getX(i), getY(i), getZ(i));
+        return(mask);
+    }
+
+
+    /**
+     * Sort voxels by plane, keeping their index in voxels array
+     */
+    private synchronized void buildPlaneIndex() {
+        if (planeOffsets != null)
+            return;
+        int[] newOffsets = new int[depth+1];
+        for (int i = 0; i < voxels.length; i++)
+            newOffsets[getZ(i)+1]++;
+        for (int z = 0; z < depth; z++)
+            newOffsets[z+1] += newOffsets[z];
+        int[] newVoxels = new int[voxels.length];
+        int[] next = Arrays.copyOf(newOffsets, depth);
+        for (int i = 0; i < voxels.length; i++)
+            newVoxels[next[getZ(i)]++] = i;
+        planeVoxels = newVoxels;
+        planeOffsets = newOffsets;
+    }
+
+
+    /**
+     * Labels plane z, for label images written plane by plane
+     */
+    public float[] getLabelPlane(int z) {
+        buildPlaneIndex();
+        float[] plane = new float[width*height];
+        int d = 0;
+        for (int p = planeOffsets[z]; p < planeOffsets[z+1]; p++) {
+            int i = planeVoxels[p];
+            // Voxels of a plane are in increasing index order, so dots are visited in order
+            while (offsets[d+1] <= i)
+                d++;
+            plane[(int)(voxels[i] % sliceSize)] = labels[d];
+        }
+        return(plane);
+    }
+
+
+    /**
+     * Convert to mcib3d population, through a labels image
+     */
+    public Objects3DIntPopulation toPopulation() {
+        int maxLabel = 0;
+        for (float label: labels)
+            maxLabel = Math.max(maxLabel, (int)label);
+        ImagePlus imgLabels = IJ.createImage("Dots labels", ((maxLabel < 65535) ? 16 : 32)+"-bit black", width, height, depth);
+        ImageStack stack = imgLabels.getStack();
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] plane = getLabelPlane(z);
+            ImageProcessor ip = stack.getProcessor(z+1);
+            for (int i = 0; i < plane.length; i++)
+                if (plane[i] != 0)
+                    ip.setf(i, plane[i]);
+        });
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+        imgLabels.close();
+        return(pop);
+    }
+}
@@ -0,0 +1,169 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Pool of slice pixel arrays recycled between images
+ * ImageJ processors can only wrap plain Java arrays, so buffers stay on heap,
+ * but each large slice array is allocated once and reused for all the intermediates
+ * (filtered, binary, label and drawing stacks) of the following images
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class ImageBufferPool {
+
+    private final Map<String, Deque<Object>> freeBuffers = new HashMap<>();
+    private final long maxPooledBytes;
+    private long pooledBytes = 0;
+
+
+    public ImageBufferPool() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+
+    public ImageBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+
+    /**
+     * Get a zeroed pixels array of given bit depth and length
+     */
+    public Object borrow(int bitDepth, int length) {
+        Object pixels = null;
+        synchronized (this) {
+            Deque<Object> buffers = freeBuffers.get(key(bitDepth, length));
+            if (buffers != null && !buffers.isEmpty()) {
+                pixels = buffers.pop();
+                pooledBytes -= bytes(bitDepth, length);
+            }
+        }
+        if (pixels == null)
+            return(allocate(bitDepth, length));
+        clear(pixels);
+        return(pixels);
+    }
+
+
+    /**
+     * Give back a pixels array to the pool, dropped if pool is full
+     */
+    public void recycle(Object pixels) {
+        int bitDepth = bitDepth(pixels);
+        if (bitDepth == 0)
+            return;
+        int length = java.lang.reflect.Array.getLength(pixels);
+        long size = bytes(bitDepth, length);
+        synchronized (this) {
+            if (pooledBytes + size > maxPooledBytes)
+                return;
+            freeBuffers.computeIfAbsent(key(bitDepth, length), k -> new ArrayDeque<>()).push(pixels);
+            pooledBytes += size;
+        }
+    }
+
+
+    /**
+     * Create a black image whose slices are taken from the pool
+     */
+    public ImagePlus createImage(String title, int width, int height, int depth, int bitDepth) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", borrow(bitDepth, width*height));
+        return(new ImagePlus(title, stack));
+    }
+
+
+    /**
+     * Create a black image with same dimensions and bit depth as img
+     */
+    public ImagePlus createSameDimensions(ImagePlus img) {
+        return(createImage(img.getTitle(), img.getWidth(), img.getHeight(), img.getStackSize(), img.getBitDepth()));
+    }
+
+
+    /**
+     * Close an image and give back its slices to the pool
+     * Image must not be used anymore afterwards
+     */
+    public void recycle(ImagePlus img) {
+        if (img == null)
+            return;
+        ImageStack stack = img.getStack();
+        // Keep a copy of slices references, flush clears the stack array
+        Object[] slices = (stack.isVirtual()) ? null : Arrays.copyOf(stack.getImageArray(), stack.getSize());
+        img.flush();
+        img.close();
+        if (slices == null)
+            return;
+        for (Object pixels: slices) {
+            if (pixels != null)
+                recycle(pixels);
+        }
+    }
+
+
+    /**
+     * Drop all pooled buffers
+     */
+    public synchronized void clear() {
+        freeBuffers.clear();
+        pooledBytes = 0;
+    }
+
+
+    private static String key(int bitDepth, int length) {
+        return(bitDepth + "-" + length);
+    }
+
+
+    private static long bytes(int bitDepth, int length) {
+        return((long)length * ((bitDepth == 24) ? 4 : bitDepth / 8));
+    }
+
+
+    private static int bitDepth(Object pixels) {
+        if (pixels instanceof byte[])
+            return(8);
+        if (pixels instanceof short[])
+            return(16);
+        if (pixels instanceof float[])
+            return(32);
+        if (pixels instanceof int[])
+            return(24);
+        return(0);
+    }
+
+
+    private static Object allocate(int bitDepth, int length) {
+        switch (bitDepth) {
+            case 8 :
+                return(new byte[length]);
+            case 16 :
+                return(new short[length]);
+            case 24 :
+                return(new int[length]);
+            default :
+                return(new float[length]);
+        }
+    }
+
+
+    private static void clear(Object pixels) {
+        if (pixels instanceof byte[])
+            Arrays.fill((byte[])pixels, (byte)0);
+        else if (pixels instanceof short[])
+            Arrays.fill((short[])pixels, (short)0);
+        else if (pixels instanceof float[])
+            Arrays.fill((float[])pixels, 0f);
+        else if (pixels instanceof int[])
+            Arrays.fill((int[])pixels, 0);
+    }
+}
@@ -0,0 +1,303 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.measure.Calibration;
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * OME-Zarr (NGFF 0.4, Zarr v2) writer for overlays and label images
+ * Arrays are chunked one plane deep and 512x512 in XY, chunks are zlib compressed in parallel,
+ * one task per channel plane, and each plane is reduced by 2 in XY for every pyramid level
+ * Empty chunks are not written, readers use the zero fill value
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class OmeZarrWriter {
+
+    /**
+     * Provides full resolution planes, values are stored with the image data type
+     */
+    public interface PlaneSource {
+        float[] getPlane(int c, int z);
+    }
+
+    private static final int CHUNK_XY = 512;
+    private static final int MAX_LEVELS = 5;
+    private static final int COMPRESSION_LEVEL = 1;
+
+    private final File root;
+    private final int width, height, depth;
+    private final Calibration cal;
+    private final int nbLevels;
+
+
+    public OmeZarrWriter(String path, int width, int height, int depth, Calibration cal) {
+        this.root = new File(path);
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.cal = cal;
+        int levels = 1;
+        while (levels < MAX_LEVELS && Math.max(width, height) >> levels >= CHUNK_XY / 2)
+            levels++;
+        this.nbLevels = levels;
+    }
+
+
+    /**
+     * Write multi-channel image at root of the store
+     * Channels flagged nearest (masks) are reduced by sampling, others by averaging
+     */
+    public void writeImage(String name, int nChannels, int bitDepth, PlaneSource source, boolean[] nearest,
+            Color[] colors, double[][] windows) throws IOException {
+        String dtype = (bitDepth == 8) ? "|u1" : (bitDepth == 16) ? "<u2" : "<f4";
+        writeText(new File(root, ".zgroup"), "{\"zarr_format\":2}");
+
+        StringBuilder omero = new StringBuilder("\"omero\":{\"name\":\"" + name + "\",\"channels\":[");
+        for (int c = 0; c < nChannels; c++) {
+            if (c > 0)
+                omero.append(',');
+            omero.append(String.format(Locale.US, "{\"color\":\"%02X%02X%02X\",\"active\":true,\"window\":{\"start\":%s,\"end\":%s,\"min\":%s,\"max\":%s}}",
+                    colors[c].getRed(), colors[c].getGreen(), colors[c].getBlue(),
+                    number(windows[c][0]), number(windows[c][1]), number(windows[c][0]), number(windows[c][1])));
+        }
+        omero.append("]}");
+        writeText(new File(root, ".zattrs"), "{" + multiscales(name, true) + "," + omero + "}");
+
+        writeArrays(root, true, nChannels, dtype, bitDepth, source, nearest);
+    }
+
+
+    /**
+     * Labels planes of a population, drawn from objects voxels
+     */
+    public PlaneSource labelSource(Objects3DIntPopulation pop) {
+        LabelPlanes planes = new LabelPlanes(pop);
+        return((c, z) -> planes.getPlane(z));
+    }
+
+
+    /**
+     * Write labels planes as label images under labels/
+     */
+    public void writeLabels(String[] names, PlaneSource[] sources) throws IOException {
+        File labelsDir = new File(root, "labels");
+        writeText(new File(labelsDir, ".zgroup"), "{\"zarr_format\":2}");
+        StringBuilder list = new StringBuilder();
+        for (String name: names)
+            list.append(list.length() > 0 ? "," : "").append('"').append(name).append('"');
+        writeText(new File(labelsDir, ".zattrs"), "{\"labels\":[" + list + "]}");
+
+        for (int l = 0; l < names.length; l++) {
+            File labelDir = new File(labelsDir, names[l]);
+            writeText(new File(labelDir, ".zgroup"), "{\"zarr_format\":2}");
+            writeText(new File(labelDir, ".zattrs"), "{" + multiscales(names[l], false)
+                    + ",\"image-label\":{\"version\":\"0.4\",\"source\":{\"image\":\"../../\"}}}");
+            writeArrays(labelDir, false, 1, "<u4", 32, sources[l], new boolean[]{true});
+        }
+    }
+
+
+    /**
+     * Write .zarray of each level then chunks of all channel planes in parallel
+     */
+    private void writeArrays(File dir, boolean hasChannels, int nChannels, String dtype, int bitDepth, PlaneSource source,
+            boolean[] nearest) throws IOException {
+        for (int l = 0; l < nbLevels; l++) {
+            String shape = (hasChannels ? nChannels + "," : "") + depth + "," + levelSize(height, l) + "," + levelSize(width, l);
+            String chunks = (hasChannels ? "1," : "") + "1," + CHUNK_XY + "," + CHUNK_XY;
+            writeText(new File(dir, l + File.separator + ".zarray"), "{\"zarr_format\":2,\"shape\":[" + shape + "],\"chunks\":[" + chunks
+                    + "],\"dtype\":\"" + dtype + "\",\"compressor\":{\"id\":\"zlib\",\"level\":" + COMPRESSION_LEVEL
+                    + "},\"fill_value\":0,\"order\":\"C\",\"filters\":null,\"dimension_separator\":\"/\"}");
+        }
+        boolean isLabel = dtype.equals("<u4");
+        int bytesPerVoxel = isLabel ? 4 : Math.max(1, bitDepth / 8);
+        try {
+            IntStream.range(0, nChannels * depth).parallel().forEach(t -> {
+                int c = t / depth, z = t % depth;
+                float[] plane = source.getPlane(c, z);
+                int w = width, h = height;
+                Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+                try {
+                    for (int l = 0; l < nbLevels; l++) {
+                        if (l > 0) {
+                            plane = reduce(plane, w, h, nearest[c]);
+                            w = levelSize(width, l);
+                            h = levelSize(height, l);
+                        }
+                        String prefix = l + File.separator + (hasChannels ? c + File.separator : "") + z + File.separator;
+                        writeChunks(dir, prefix, plane, w, h, bytesPerVoxel, isLabel, deflater);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } finally {
+                    deflater.end();
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+
+    /**
+     * Write XY chunks of one plane, chunks are padded to full size with zeros
+     */
+    private void writeChunks(File dir, String prefix, float[] plane, int w, int h, int bytesPerVoxel, boolean isLabel,
+            Deflater deflater) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_XY * CHUNK_XY * bytesPerVoxel).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] compressed = new byte[chunk.capacity() + chunk.capacity() / 100 + 64];
+        for (int cy = 0; cy * CHUNK_XY < h; cy++) {
+            for (int cx = 0; cx * CHUNK_XY < w; cx++) {
+                Arrays.fill(chunk.array(), (byte)0);
+                boolean empty = true;
+                for (int y = 0; y < CHUNK_XY && cy * CHUNK_XY + y < h; y++) {
+                    int row = (cy * CHUNK_XY + y) * w + cx * CHUNK_XY;
+                    for (int x = 0; x < CHUNK_XY && cx * CHUNK_XY + x < w; x++) {
+                        float v = plane[row + x];
+                        if (v == 0)
+                            continue;
+                        empty = false;
+                        int i = (y * CHUNK_XY + x) * bytesPerVoxel;
+                        if (isLabel)
+                            chunk.putInt(i, (int)v);
+                        else if (bytesPerVoxel == 1)
+                            chunk.put(i, (byte)v);
+                        else if (bytesPerVoxel == 2)
+                            chunk.putShort(i, (short)v);
+                        else
+                            chunk.putFloat(i, v);
+                    }
+                }
+                if (empty)
+                    continue;
+                deflater.reset();
+                deflater.setInput(chunk.array());
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length)
+                        compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                File file = new File(dir, prefix + cy + File.separator + cx);
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), Arrays.copyOf(compressed, length));
+            }
+        }
+    }
+
+
+    /**
+     * Reduce plane by 2 in XY, by sampling or by averaging
+     */
+    private float[] reduce(float[] plane, int w, int h, boolean nearest) {
+        int rw = (w + 1) / 2, rh = (h + 1) / 2;
+        float[] reduced = new float[rw * rh];
+        for (int y = 0; y < rh; y++) {
+            for (int x = 0; x < rw; x++) {
+                int x0 = 2 * x, y0 = 2 * y;
+                if (nearest) {
+                    reduced[x + y * rw] = plane[x0 + y0 * w];
+                } else {
+                    int x1 = Math.min(w - 1, x0 + 1), y1 = Math.min(h - 1, y0 + 1);
+                    reduced[x + y * rw] = (plane[x0 + y0 * w] + plane[x1 + y0 * w] + plane[x0 + y1 * w] + plane[x1 + y1 * w]) / 4;
+                }
+            }
+        }
+        return(reduced);
+    }
+
+
+    private int levelSize(int size, int level) {
+        for (int l = 0; l < level; l++)
+            size = (size + 1) / 2;
+        return(size);
+    }
+
+
+    /**
+     * multiscales metadata, with physical scale of each level
+     */
+    private String multiscales(String name, boolean hasChannels) {
+        StringBuilder json = new StringBuilder("\"multiscales\":[{\"version\":\"0.4\",\"name\":\"" + name + "\",\"axes\":[");
+        if (hasChannels)
+            json.append("{\"name\":\"c\",\"type\":\"channel\"},");
+        json.append("{\"name\":\"z\",\"type\":\"space\",\"unit\":\"micrometer\"},{\"name\":\"y\",\"type\":\"space\",\"unit\":\"micrometer\"},")
+            .append("{\"name\":\"x\",\"type\":\"space\",\"unit\":\"micrometer\"}],\"datasets\":[");
+        for (int l = 0; l < nbLevels; l++) {
+            double sy = cal.pixelHeight * height / levelSize(height, l);
+            double sx = cal.pixelWidth * width / levelSize(width, l);
+            json.append(l > 0 ? "," : "").append("{\"path\":\"").append(l).append("\",\"coordinateTransformations\":[{\"type\":\"scale\",\"scale\":[")
+                .append(hasChannels ? "1," : "").append(number(cal.pixelDepth)).append(',').append(number(sy)).append(',').append(number(sx))
+                .append("]}]}");
+        }
+        json.append("]}]");
+        return(json.toString());
+    }
+
+
+    private String number(double value) {
+        return(String.format(Locale.US, "%s", (float)value));
+    }
+
+
+    private void writeText(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Label planes drawn from objects voxels, without a full label stack
+     */
+    private class LabelPlanes {
+
+        private final List<List<Object3DPlane>> planes = new ArrayList<>();
+        private final List<List<Float>> labels = new ArrayList<>();
+
+        LabelPlanes(Objects3DIntPopulation pop) {
+            for (int z = 0; z < depth; z++) {
+                planes.add(new ArrayList<>());
+                labels.add(new ArrayList<>());
+            }
+            for (Object3DInt obj: pop.getObjects3DInt()) {
+                for (Object3DPlane plane: obj.getObject3DPlanes()) {
+                    if (plane.getVoxels().isEmpty())
+                        continue;
+                    int z = plane.getVoxels().get(0).getZ();
+                    if (z >= 0 && z < depth) {
+                        planes.get(z).add(plane);
+                        labels.get(z).add(obj.getLabel());
+                    }
+                }
+            }
+        }
+
+        float[] getPlane(int z) {
+            float[] plane = new float[width * height];
+            for (int p = 0; p < planes.get(z).size(); p++) {
+                float label = labels.get(z).get(p);
+                for (VoxelInt v: planes.get(z).get(p).getVoxels())
+                    plane[v.getX() + v.getY() * width] = label;
+            }
+            return(plane);
+        }
+    }
+}
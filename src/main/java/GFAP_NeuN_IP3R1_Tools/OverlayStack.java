@@ -0,0 +1,105 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Virtual 5 channels overlay stack: masks channels followed by raw channels
+ * Each plane is composed when it is read, so saving the stack writes slices one at a time
+ * and only the bit masks and the raw stacks already in memory are kept
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class OverlayStack extends VirtualStack {
+
+    private final BitMask3D[] masks;
+    private final ImageStack[] raws;
+    private final int bitDepth, nChannels, depth;
+    private final double maskValue;
+
+
+    public OverlayStack(BitMask3D[] masks, ImagePlus[] raws, double maskValue) {
+        super(raws[0].getWidth(), raws[0].getHeight(), null, "");
+        this.masks = masks;
+        this.raws = new ImageStack[raws.length];
+        for (int r = 0; r < raws.length; r++)
+            this.raws[r] = raws[r].getStack();
+        this.bitDepth = raws[0].getBitDepth();
+        this.nChannels = masks.length + raws.length;
+        this.depth = raws[0].getNSlices();
+        this.maskValue = maskValue;
+    }
+
+
+    public int getNChannels() {
+        return(nChannels);
+    }
+
+
+    @Override
+    public int getSize() {
+        return(nChannels * depth);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(bitDepth);
+    }
+
+
+    /**
+     * Plane n (1-based) in channel fastest order
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        int c = (n-1) % nChannels;
+        int z = (n-1) / nChannels;
+        if (c >= masks.length)
+            return(raws[c - masks.length].getProcessor(z+1));
+        ImageProcessor ip = raws[0].getProcessor(z+1).createProcessor(getWidth(), getHeight());
+        masks[c].paintSlice(z, ip, maskValue);
+        return(ip);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+    }
+
+
+    /**
+     * Display range of a raw stack from a sampled histogram, saturating a fraction of voxels
+     * like "Enhance Contrast" without reading every voxel
+     */
+    public static double[] getContrastLimits(ImagePlus img, double saturated, int nbSamples) {
+        ImageStack stack = img.getStack();
+        int size = img.getWidth() * img.getHeight();
+        long nbVoxels = (long)size * img.getNSlices();
+        long step = Math.max(1, nbVoxels / nbSamples);
+        float[] samples = new float[(int)((nbVoxels + step - 1) / step)];
+        int n = 0, lastZ = -1;
+        ImageProcessor ip = null;
+        for (long v = 0; v < nbVoxels; v += step) {
+            int z = (int)(v / size);
+            if (z != lastZ) {
+                ip = stack.getProcessor(z+1);
+                lastZ = z;
+            }
+            samples[n++] = ip.getf((int)(v % size));
+        }
+        Arrays.sort(samples, 0, n);
+        int low = (int)(n * saturated / 200);
+        int high = Math.max(low, n - 1 - low);
+        return(new double[]{samples[low], samples[high]});
+    }
+}
@@ -0,0 +1,180 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.AutoThresholder;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+
+
+/**
+ * Sweep of threshold methods and min volumes
+ * Each image is filtered once, all threshold methods are computed from the same histogram
+ * and each labeling is size filtered once per min volume
+ * Results are written in long format, one row per (image, objects, method, min volume)
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class ParameterSweep {
+
+    private final Tools tools;
+    private final BufferedWriter results;
+    private final String[] thMethods;
+    private final double[] minCellVols, minDotsVols;
+
+
+    public ParameterSweep(Tools tools, BufferedWriter results) {
+        this.tools = tools;
+        this.results = results;
+        this.thMethods = parseMethods(tools.sweepThMethods);
+        this.minCellVols = parseValues(tools.sweepMinCellVols, "cells min volumes");
+        this.minDotsVols = parseValues(tools.sweepMinDotsVols, "dots min volumes");
+    }
+
+
+    /**
+     * Check sweep lists as typed in the dialog
+     * Return the first error found, null if all lists are valid
+     */
+    public static String checkLists(String thMethods, String minCellVols, String minDotsVols) {
+        try {
+            parseMethods(thMethods);
+            parseValues(minCellVols, "cells min volumes");
+            parseValues(minDotsVols, "dots min volumes");
+        } catch (IllegalArgumentException ex) {
+            return(ex.getMessage());
+        }
+        return(null);
+    }
+
+
+    /**
+     * Write results file headers
+     */
+    public void writeHeaders() throws IOException {
+        results.write("Image name\tObjects\tThreshold method\tThreshold value\tMin volume (µm3)\tNb objects\tTotal volume (µm3)\n");
+        results.flush();
+    }
+
+
+    /**
+     * Sweep parameters on cells (astrocytes only) and dots channels of an image
+     */
+    public void run(String imageName, ImagePlus imgCells, ImagePlus imgDots, ArrayList<Roi> rois) throws IOException {
+        if (tools.detectAstro) {
+            tools.print("- Sweeping astrocytes parameters -");
+            ImagePlus imgMed = tools.median2D(imgCells, tools.medianSize);
+            sweep(imageName, "Astrocytes", imgMed, rois, minCellVols, true);
+            tools.releaseImage(imgMed);
+        }
+
+        tools.print("- Sweeping IP3R1 dots parameters -");
+        ImagePlus imgDOG = tools.DOG(imgDots, tools.dogSize1XY, tools.dogSize1Z, tools.dogSize2XY, tools.dogSize2Z);
+        sweep(imageName, "IP3R1 dots", imgDOG, rois, minDotsVols, false);
+        tools.releaseImage(imgDOG);
+    }
+
+
+    /**
+     * Threshold filtered image with each method and count objects for each min volume
+     */
+    private void sweep(String imageName, String objectsName, ImagePlus imgFiltered, ArrayList<Roi> rois, double[] minVols, boolean filterOneZ) throws IOException {
+        double[] range = CPUBackend.getRange(imgFiltered);
+        int[] histogram = CPUBackend.getHistogram(imgFiltered, range[0], range[1]);
+        BitMask3D roisMask = rois.isEmpty() ? null : tools.getRoisMask(rois, imgFiltered.getWidth(), imgFiltered.getHeight());
+
+        AutoThresholder thresholder = new AutoThresholder();
+        for (String method: thMethods) {
+            int bin = thresholder.getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+            double thValue = CPUBackend.getThresholdValue(range, bin);
+
+            BitMask3D mask = BitMask3D.fromThreshold(imgFiltered, thValue);
+            if (roisMask != null)
+                mask.andNot(roisMask);
+            Objects3DIntPopulation pop = tools.getPopFromMask(mask);
+            if (filterOneZ)
+                tools.popFilterOneZ(pop);
+
+            // Sorted volumes, each min volume is a binary search and a suffix sum
+            double[] vols = getVolumes(pop);
+            double[] suffixSums = new double[vols.length + 1];
+            for (int i = vols.length - 1; i >= 0; i--)
+                suffixSums[i] = suffixSums[i+1] + vols[i];
+            for (double minVol: minVols) {
+                int first = firstIndexAbove(vols, minVol);
+                results.write(imageName+"\t"+objectsName+"\t"+method+"\t"+thValue+"\t"+minVol+"\t"+(vols.length - first)+"\t"+suffixSums[first]+"\n");
+            }
+            results.flush();
+        }
+    }
+
+
+    private double[] getVolumes(Objects3DIntPopulation pop) {
+        pop.setVoxelSizeXY(tools.cal.pixelWidth);
+        pop.setVoxelSizeZ(tools.cal.pixelDepth);
+        double[] vols = pop.getObjects3DInt().parallelStream().mapToDouble(obj -> new MeasureVolume(obj).getVolumeUnit()).toArray();
+        Arrays.sort(vols);
+        return(vols);
+    }
+
+
+    /**
+     * Index of first volume >= minVol in sorted volumes
+     */
+    private int firstIndexAbove(double[] vols, double minVol) {
+        int low = 0, high = vols.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (vols[mid] < minVol)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return(low);
+    }
+
+
+    private static String[] split(String list) {
+        return(Arrays.stream(list.split("[,;\\s]+")).map(String::trim).filter(v -> !v.isEmpty()).toArray(String[]::new));
+    }
+
+
+    /**
+     * Threshold methods of list, throws if a method is unknown or list is empty
+     */
+    private static String[] parseMethods(String methods) {
+        List<String> valid = Arrays.asList(AutoThresholder.getMethods());
+        String[] thMethods = split(methods);
+        for (String method: thMethods) {
+            if (!valid.contains(method))
+                throw new IllegalArgumentException("Unknown threshold method \"" + method + "\"");
+        }
+        if (thMethods.length == 0)
+            throw new IllegalArgumentException("No threshold method to sweep");
+        return(thMethods);
+    }
+
+
+    /**
+     * Sorted values of list, throws if a value is not a number or list is empty
+     */
+    private static double[] parseValues(String values, String name) {
+        String[] fields = split(values);
+        if (fields.length == 0)
+            throw new IllegalArgumentException("No " + name + " to sweep");
+        double[] parsed = new double[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                parsed[i] = Double.parseDouble(fields[i]);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid " + name + " value \"" + fields[i] + "\"");
+            }
+        }
+        Arrays.sort(parsed);
+        return(parsed);
+    }
+}
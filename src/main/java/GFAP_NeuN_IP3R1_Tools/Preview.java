@@ -0,0 +1,259 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.gui.NonBlockingGenericDialog;
+import ij.gui.Roi;
+import ij.plugin.Binner;
+import ij.plugin.Duplicator;
+import ij.plugin.RGBStackMerge;
+import ij.process.AutoThresholder;
+import java.awt.AWTEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import loci.formats.FormatException;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Preview cells and dots detection on a downsampled copy of an image
+ * Detection is updated each time a parameter changes in the dialog box,
+ * tuned parameters are copied back into tools for the full run
+ * Volumes are in µm3 with the downsampled calibration, so volume thresholds carry over
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class Preview implements DialogListener {
+
+    private final Tools tools;
+    private final Tools previewTools;
+    private final List<String> imageFiles;
+    private final int indexCellsCh, indexDotsCh;
+
+    // Downsampled images and segmentations kept between updates
+    private int imageIndex = -1;
+    private ImagePlus imgCells, imgDots, imgPreview;
+    private String cellsMethod, dotsMethod;
+    private Objects3DIntPopulation cellsPopAll;
+    private DotsPopulation dotsPopAll;
+
+    // Parameters read in dialog box
+    private volatile int nextImageIndex = 0;
+    private volatile String nextCellsMethod, nextDotsMethod;
+    private volatile double nextMinCellVol, nextMinDotsVol;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+
+
+    public Preview(Tools tools, List<String> imageFiles, int indexCellsCh, int indexDotsCh) {
+        this.tools = tools;
+        this.imageFiles = imageFiles;
+        this.indexCellsCh = indexCellsCh;
+        this.indexDotsCh = indexDotsCh;
+
+        // Same parameters, rescaled to downsampled pixels size
+        previewTools = tools.duplicate();
+        previewTools.cal.pixelWidth = previewTools.cal.pixelHeight = tools.cal.pixelWidth * tools.previewBin;
+        previewTools.pixVol = previewTools.cal.pixelWidth * previewTools.cal.pixelHeight * previewTools.cal.pixelDepth;
+        previewTools.medianSize = Math.max(1, tools.medianSize / tools.previewBin);
+        previewTools.dogSize1XY = tools.dogSize1XY / tools.previewBin;
+        previewTools.dogSize2XY = tools.dogSize2XY / tools.previewBin;
+        previewTools.cellposeDiam = Math.max(1, (int)Math.round((double)tools.cellposeDiam / tools.previewBin));
+
+        nextCellsMethod = tools.astroThMethod;
+        nextDotsMethod = tools.dotsThMethod;
+        nextMinCellVol = tools.minCellVol;
+        nextMinDotsVol = tools.minDotsVol;
+    }
+
+
+    /**
+     * Show preview dialog box
+     * Return false if dialog was canceled
+     */
+    public boolean run() {
+        String[] imageNames = new String[imageFiles.size()];
+        for (int i = 0; i < imageNames.length; i++)
+            imageNames[i] = FilenameUtils.getBaseName(imageFiles.get(i));
+        String[] thMethods = AutoThresholder.getMethods();
+
+        NonBlockingGenericDialog gd = new NonBlockingGenericDialog("Preview");
+        gd.addChoice("Image: ", imageNames, imageNames[0]);
+        if (tools.detectAstro)
+            gd.addChoice("Astro threshold method: ", thMethods, nextCellsMethod);
+        gd.addNumericField("Cells min volume (µm3): ", nextMinCellVol, 2);
+        gd.addChoice("Dots threshold method: ", thMethods, nextDotsMethod);
+        gd.addNumericField("Dots min volume (µm3): ", nextMinDotsVol, 2);
+        gd.addMessage("Preview at 1/"+tools.previewBin+" XY resolution, ROIs are not applied");
+        gd.addDialogListener(this);
+        scheduleUpdate();
+        gd.showDialog();
+
+        executor.shutdownNow();
+        if (imgPreview != null)
+            imgPreview.close();
+        if (gd.wasCanceled())
+            return(false);
+
+        // Carry tuned parameters over to the full run
+        if (tools.detectAstro)
+            tools.astroThMethod = nextCellsMethod;
+        tools.minCellVol = nextMinCellVol;
+        tools.dotsThMethod = nextDotsMethod;
+        tools.minDotsVol = nextMinDotsVol;
+        return(true);
+    }
+
+
+    @Override
+    public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+        nextImageIndex = gd.getNextChoiceIndex();
+        if (tools.detectAstro)
+            nextCellsMethod = gd.getNextChoice();
+        double minCellVol = gd.getNextNumber();
+        nextDotsMethod = gd.getNextChoice();
+        double minDotsVol = gd.getNextNumber();
+        if (gd.invalidNumber())
+            return(false);
+        nextMinCellVol = minCellVol;
+        nextMinDotsVol = minDotsVol;
+        scheduleUpdate();
+        return(true);
+    }
+
+
+    /**
+     * Queue an update, several changes made during a running update give a single new update
+     */
+    private void scheduleUpdate() {
+        if (updateQueued.compareAndSet(false, true)) {
+            executor.submit(() -> {
+                updateQueued.set(false);
+                try {
+                    update();
+                } catch (Exception ex) {
+                    IJ.log("Preview failed: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Run detection with current parameters, reusing segmentations that did not change
+     */
+    private void update() throws FormatException, IOException {
+        long start = System.currentTimeMillis();
+        ArrayList<Roi> noRois = new ArrayList<>();
+
+        if (nextImageIndex != imageIndex) {
+            IJ.showStatus("Preview: loading image...");
+            loadImage(nextImageIndex);
+            cellsPopAll = dotsPopAll = null;
+        }
+
+        if (cellsPopAll == null || (tools.detectAstro && !nextCellsMethod.equals(cellsMethod))) {
+            IJ.showStatus("Preview: detecting cells...");
+            previewTools.astroThMethod = cellsMethod = nextCellsMethod;
+            cellsPopAll = previewTools.segmentCells(imgCells, noRois);
+        }
+        if (dotsPopAll == null || !nextDotsMethod.equals(dotsMethod)) {
+            IJ.showStatus("Preview: detecting dots...");
+            previewTools.dotsThMethod = dotsMethod = nextDotsMethod;
+            dotsPopAll = previewTools.segmentDots(imgDots, noRois);
+        }
+
+        // Size filtering on copies, keeping full segmentations for next updates
+        Objects3DIntPopulation cellsPop = copyPop(cellsPopAll);
+        previewTools.popFilterSize(cellsPop, nextMinCellVol, Double.MAX_VALUE);
+        DotsPopulation dotsPop = previewTools.filterDotsSize(dotsPopAll, nextMinDotsVol, Double.MAX_VALUE);
+        List<DotsPopulation> dotsInOutCells = previewTools.findDotsInOutCells(dotsPop, cellsPop, imgDots);
+
+        showResults(cellsPop, dotsInOutCells.get(0), dotsInOutCells.get(1));
+        IJ.showStatus("Preview: " + cellsPop.getNbObjects() + " cells, " + dotsInOutCells.get(0).getNbObjects() + " dots in, "
+                + dotsInOutCells.get(1).getNbObjects() + " dots out (" + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+
+    /**
+     * Open cells and dots channels of image and downsample them
+     */
+    private void loadImage(int index) throws FormatException, IOException {
+        if (imgCells != null) {
+            tools.closeImage(imgCells);
+            tools.closeImage(imgDots);
+        }
+        ImporterOptions options = new ImporterOptions();
+        options.setId(imageFiles.get(index));
+        options.setSplitChannels(true);
+        options.setQuiet(true);
+        options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
+        ImagePlus[] imgs = BF.openImagePlus(options);
+        imgCells = downsample(imgs[indexCellsCh]);
+        imgDots = downsample(imgs[indexDotsCh]);
+        for (ImagePlus img: imgs)
+            tools.closeImage(img);
+        imageIndex = index;
+    }
+
+
+    /**
+     * XY binning and optional central Z subset
+     */
+    private ImagePlus downsample(ImagePlus img) {
+        ImagePlus imgSub = img;
+        int nbSlices = tools.previewNbSlices;
+        if (nbSlices > 0 && nbSlices < img.getNSlices()) {
+            int firstZ = (img.getNSlices() - nbSlices) / 2 + 1;
+            imgSub = new Duplicator().run(img, 1, 1, firstZ, firstZ + nbSlices - 1, 1, 1);
+        }
+        ImagePlus imgBin = (tools.previewBin > 1) ? new Binner().shrink(imgSub, tools.previewBin, tools.previewBin, 1, Binner.AVERAGE)
+                : imgSub.duplicate();
+        if (imgSub != img)
+            tools.closeImage(imgSub);
+        imgBin.setCalibration(previewTools.cal);
+        return(imgBin);
+    }
+
+
+    private Objects3DIntPopulation copyPop(Objects3DIntPopulation pop) {
+        Objects3DIntPopulation popCopy = new Objects3DIntPopulation();
+        pop.getObjects3DInt().forEach(popCopy::addObject);
+        return(popCopy);
+    }
+
+
+    /**
+     * Display cells in blue, dots inside cells in red and dots outside cells in green
+     */
+    private void showResults(Objects3DIntPopulation cellsPop, DotsPopulation dotsInPop, DotsPopulation dotsOutPop) {
+        int width = imgCells.getWidth(), height = imgCells.getHeight(), depth = imgCells.getNSlices();
+        int bitDepth = imgCells.getBitDepth();
+        ImagePlus[] imgColors = {
+            dotsInPop.toMask().toImagePlus("Dots in", bitDepth, 255, null),
+            dotsOutPop.toMask().toImagePlus("Dots out", bitDepth, 255, null),
+            BitMask3D.fromPopulation(cellsPop, width, height, depth).toImagePlus("Cells", bitDepth, 255, null),
+            imgDots.duplicate(), imgCells.duplicate()};
+        ImagePlus img = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        img.setCalibration(previewTools.cal);
+        img.setTitle("Preview");
+
+        int z = 1;
+        if (imgPreview != null) {
+            z = imgPreview.getZ();
+            imgPreview.close();
+        }
+        imgPreview = img;
+        imgPreview.show();
+        imgPreview.setPosition(1, Math.min(z, depth), 1);
+    }
+}
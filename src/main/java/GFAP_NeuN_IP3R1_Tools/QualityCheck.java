@@ -0,0 +1,163 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Quick quality check of a series before analysis, on a few planes and tiles read through the reader
+ * - empty: brightest sampled voxels (99.9th percentile) are less than qcMinSignal noise sigmas above the median,
+ *   noise sigma being estimated from the median absolute deviation
+ * - saturated: more than qcMaxSaturation % of sampled voxels at the maximum value of the data type
+ * - out of focus: normalized Laplacian energy of the most textured tile of the sharpest sampled plane below qcMinFocus
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class QualityCheck {
+
+    private final Tools tools;
+    private final int nbPlanes = 5;
+    private final int nbTilesXY = 3;
+    private final int tileSize = 256;
+
+
+    public QualityCheck(Tools tools) {
+        this.tools = tools;
+    }
+
+
+    /**
+     * Check channels of a series
+     * Return null if all channels pass, otherwise the reasons they fail
+     */
+    public String check(ImageProcessorReader reader, int series, int[] channels, String[] names) throws FormatException, IOException {
+        List<String> reasons = new ArrayList<>();
+        for (int c = 0; c < channels.length; c++) {
+            double[] stats = sample(reader, series, channels[c]);
+            double signal = stats[0], saturation = stats[1], focus = stats[2];
+            System.out.println(String.format(Locale.US, "QC %s: signal %.1f sigma, saturated %.3f %%, focus %.4f", names[c], signal, saturation, focus));
+            if (signal < tools.qcMinSignal)
+                reasons.add(String.format(Locale.US, "empty %s (signal %.1f sigma)", names[c], signal));
+            if (saturation > tools.qcMaxSaturation)
+                reasons.add(String.format(Locale.US, "saturated %s (%.2f %%)", names[c], saturation));
+            if (tools.qcMinFocus > 0 && focus < tools.qcMinFocus)
+                reasons.add(String.format(Locale.US, "out of focus %s (focus %.4f)", names[c], focus));
+        }
+        return(reasons.isEmpty() ? null : String.join(", ", reasons));
+    }
+
+
+    /**
+     * Read a grid of tiles in planes evenly spaced in Z
+     * Return {signal in noise sigmas, saturated voxels %, focus}
+     */
+    private double[] sample(ImageProcessorReader reader, int series, int channel) throws FormatException, IOException {
+        ImageProcessor[][] tiles;
+        double maxValue;
+        synchronized (reader) {
+            reader.setSeries(series);
+            int sizeX = reader.getSizeX(), sizeY = reader.getSizeY(), sizeZ = reader.getSizeZ();
+            int tileW = Math.min(sizeX, Math.min(tileSize, Math.max(16, sizeX / nbTilesXY)));
+            int tileH = Math.min(sizeY, Math.min(tileSize, Math.max(16, sizeY / nbTilesXY)));
+            int nbZ = Math.min(nbPlanes, sizeZ);
+            int pixelType = reader.getPixelType();
+            int bits = (reader.getBitsPerPixel() > 0) ? reader.getBitsPerPixel() : 8 * FormatTools.getBytesPerPixel(pixelType);
+            // No saturation level for float data
+            maxValue = (pixelType == FormatTools.FLOAT || pixelType == FormatTools.DOUBLE) ? Double.NaN : Math.pow(2, bits) - 1;
+            tiles = new ImageProcessor[nbZ][nbTilesXY*nbTilesXY];
+            for (int p = 0; p < nbZ; p++) {
+                int z = (int)((p + 0.5) * sizeZ / nbZ);
+                for (int t = 0; t < nbTilesXY*nbTilesXY; t++) {
+                    int x = tileOrigin(t % nbTilesXY, sizeX, tileW);
+                    int y = tileOrigin(t / nbTilesXY, sizeY, tileH);
+                    tiles[p][t] = reader.openProcessors(reader.getIndex(z, channel, 0), x, y, tileW, tileH)[0];
+                }
+            }
+        }
+
+        // Intensity distribution and saturation
+        int tilePixels = tiles[0][0].getPixelCount();
+        float[] values = new float[tiles.length * tiles[0].length * tilePixels];
+        long nbSaturated = 0;
+        int n = 0;
+        for (ImageProcessor[] planeTiles: tiles) {
+            for (ImageProcessor tile: planeTiles) {
+                for (int i = 0; i < tilePixels; i++) {
+                    float v = tile.getf(i);
+                    values[n++] = v;
+                    if (v >= maxValue)
+                        nbSaturated++;
+                }
+            }
+        }
+        Arrays.parallelSort(values);
+        double median = values[n / 2];
+        double high = values[Math.min(n - 1, (int)(0.999 * n))];
+        for (int i = 0; i < n; i++)
+            values[i] = (float)Math.abs(values[i] - median);
+        Arrays.parallelSort(values);
+        double sigma = 1.4826 * values[n / 2];
+        double signal = (sigma > 0) ? (high - median) / sigma : (high > median) ? Double.POSITIVE_INFINITY : 0;
+
+        // Sharpest plane, judged on its most textured tile
+        double focus = 0;
+        for (ImageProcessor[] planeTiles: tiles) {
+            ImageProcessor best = null;
+            double bestVar = -1;
+            for (ImageProcessor tile: planeTiles) {
+                double var = variance(tile);
+                if (var > bestVar) {
+                    bestVar = var;
+                    best = tile;
+                }
+            }
+            if (bestVar > 0)
+                focus = Math.max(focus, laplacianEnergy(best) / bestVar);
+        }
+        return(new double[]{signal, 100.0 * nbSaturated / n, focus});
+    }
+
+
+    private int tileOrigin(int i, int size, int tileSize) {
+        int origin = (int)((i + 0.5) * size / nbTilesXY) - tileSize / 2;
+        return(Math.max(0, Math.min(size - tileSize, origin)));
+    }
+
+
+    private double variance(ImageProcessor ip) {
+        double sum = 0, sum2 = 0;
+        int n = ip.getPixelCount();
+        for (int i = 0; i < n; i++) {
+            double v = ip.getf(i);
+            sum += v;
+            sum2 += v*v;
+        }
+        double mean = sum / n;
+        return(Math.max(0, sum2 / n - mean*mean));
+    }
+
+
+    /**
+     * Mean squared 4-neighbours Laplacian over tile interior
+     */
+    private double laplacianEnergy(ImageProcessor ip) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        if (w < 3 || h < 3)
+            return(0);
+        double sum = 0;
+        for (int y = 1; y < h-1; y++) {
+            for (int x = 1; x < w-1; x++) {
+                int i = x + y*w;
+                double lap = 4*ip.getf(i) - ip.getf(i-1) - ip.getf(i+1) - ip.getf(i-w) - ip.getf(i+w);
+                sum += lap*lap;
+            }
+        }
+        return(sum / ((w-2) * (h-2)));
+    }
+}
@@ -1,19 +1,24 @@
 package GFAP_NeuN_IP3R1_Tools;
 
-import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
+import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposeMetrics;
+import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposePool;
 import GFAP_NeuN_IP3R1_Tools.Cellpose.CellposeTaskSettings;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
+import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
-import ij.plugin.ImageCalculator;
-import ij.plugin.RGBStackMerge;
 import ij.plugin.filter.Analyzer;
 import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
@@ -23,20 +28,18 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom2.Object3DInt;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.measurements.MeasureVolume;
 import mcib3d.image3d.ImageHandler;
 import mcib3d.image3d.ImageInt;
 import mcib3d.image3d.ImageLabeller;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
 
 
@@ -48,11 +51,18 @@ public class Tools {
     public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String helpUrl = "https://github.com/orion-cirb/GFAP_IP3R1";
     
-    private final CLIJ2 clij2 = CLIJ2.getInstance();
-    
+    // Filtering on GPU (CLIJ2) or CPU, CLIJ2 falls back to CPU if no OpenCL device is found
+    public String computeBackend = "CLIJ2";
+
+    // Slices arrays of intermediate images, recycled between images
+    private final ImageBufferPool bufferPool;
+
     String[] chNames = {"Cells", "IP3R1 dots"};
     public Calibration cal = new Calibration();
     public double pixVol;
+    // Calibration read in metadata, each series uses its own unless changed in dialog box
+    private Calibration metaCal = new Calibration();
+    public boolean useSeriesCalib = true;
     
     // Astrocytes detection
     public boolean detectAstro = true;
@@ -64,12 +74,122 @@ public class Tools {
     public String cellposeModel = "cyto2_NeuN";
     public int cellposeDiam = 170;
     public double cellposeStitchTh = 1;
+    // Cellpose on GPU, only when a single process runs at a time, CPU processes otherwise
+    public boolean cellposeUseGpu = true;
+    // Concurrent Cellpose processes and threads per process (0 = cores shared between processes)
+    public int cellposeNbProcesses = 1;
+    public int cellposeNbThreads = 0;
+    // Cellpose time limit scaled to image volume, and new attempts after a failure or timeout
+    public double cellposeTimeoutPerMVox = 120;
+    public double cellposeMinTimeout = 600;
+    public int cellposeNbRetries = 1;
+    // Reduce image so that neurons are about the model native diameter before running Cellpose
+    public boolean cellposeDownsample = true;
+    public int cellposeTargetDiam = 30;
+    // Outcome of last Cellpose segmentation
+    public CellposeMetrics cellposeMetrics = null;
     
     public double minCellVol = 2;
+    public double medianSize = 4;
+    public boolean useCellsCache = true;
     
     // Dots detection
     public String dotsThMethod = "Otsu";
     public double minDotsVol = 0.02;
+    public double dogSize1XY = 1, dogSize1Z = 1;
+    public double dogSize2XY = 5, dogSize2Z = 5;
+    
+    // Per cell and per dot tables
+    public boolean exportRelations = true;
+    // Overlays and label images as chunked OME-Zarr instead of TIFF
+    public boolean saveZarr = false;
+    
+    // Quality check on sampled planes, series failing it are not analyzed
+    public boolean qcCheck = false;
+    // Min (99.9th percentile - median) in noise sigmas, max % of saturated voxels, min focus (0 = not checked)
+    public double qcMinSignal = 5;
+    public double qcMaxSaturation = 5;
+    public double qcMinFocus = 0;
+    
+    // Preview mode
+    public boolean preview = false;
+    public int previewBin = 4;
+    public int previewNbSlices = 0;
+    
+    // Watch folder mode, images are analyzed once their size is stable for watchStableTime s
+    public boolean watchFolder = false;
+    public double watchStableTime = 10;
+    public double watchIdleTime = 60;
+    
+    // Parameters sweep mode
+    public boolean sweep = false;
+    public String sweepThMethods = "Otsu, Triangle, Li, Moments";
+    public String sweepMinCellVols = "0, 1, 2, 5";
+    public String sweepMinDotsVols = "0, 0.01, 0.02, 0.05";
+    
+    
+    public Tools() {
+        this(new ImageBufferPool());
+    }
+    
+    
+    private Tools(ImageBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+    
+    
+    /**
+     * Copy of tools with same parameters, sharing the same buffer pool
+     * Every dialog parameter must be copied, only the outcome of last Cellpose run is not
+     */
+    public Tools duplicate() {
+        Tools tools = new Tools(bufferPool);
+        tools.cal = cal.copy();
+        tools.pixVol = pixVol;
+        tools.metaCal = metaCal;
+        tools.useSeriesCalib = useSeriesCalib;
+        tools.detectAstro = detectAstro;
+        tools.astroThMethod = astroThMethod;
+        tools.cellposeEnvDir = cellposeEnvDir;
+        tools.cellposeModel = cellposeModel;
+        tools.cellposeDiam = cellposeDiam;
+        tools.cellposeStitchTh = cellposeStitchTh;
+        tools.cellposeUseGpu = cellposeUseGpu;
+        tools.cellposeNbProcesses = cellposeNbProcesses;
+        tools.cellposeNbThreads = cellposeNbThreads;
+        tools.cellposeTimeoutPerMVox = cellposeTimeoutPerMVox;
+        tools.cellposeMinTimeout = cellposeMinTimeout;
+        tools.cellposeNbRetries = cellposeNbRetries;
+        tools.cellposeDownsample = cellposeDownsample;
+        tools.cellposeTargetDiam = cellposeTargetDiam;
+        tools.minCellVol = minCellVol;
+        tools.useCellsCache = useCellsCache;
+        tools.medianSize = medianSize;
+        tools.dotsThMethod = dotsThMethod;
+        tools.minDotsVol = minDotsVol;
+        tools.dogSize1XY = dogSize1XY;
+        tools.dogSize1Z = dogSize1Z;
+        tools.dogSize2XY = dogSize2XY;
+        tools.dogSize2Z = dogSize2Z;
+        tools.exportRelations = exportRelations;
+        tools.saveZarr = saveZarr;
+        tools.qcCheck = qcCheck;
+        tools.qcMinSignal = qcMinSignal;
+        tools.qcMaxSaturation = qcMaxSaturation;
+        tools.qcMinFocus = qcMinFocus;
+        tools.preview = preview;
+        tools.previewBin = previewBin;
+        tools.previewNbSlices = previewNbSlices;
+        tools.watchFolder = watchFolder;
+        tools.watchStableTime = watchStableTime;
+        tools.watchIdleTime = watchIdleTime;
+        tools.sweep = sweep;
+        tools.sweepThMethods = sweepThMethods;
+        tools.sweepMinCellVols = sweepMinCellVols;
+        tools.sweepMinDotsVols = sweepMinDotsVols;
+        tools.computeBackend = computeBackend;
+        return(tools);
+    }
     
     
     /**
@@ -105,38 +225,32 @@ public class Tools {
         String[] files = new File(imagesFolder).list();
         for (String name : files) {
             String fileExt = FilenameUtils.getExtension(name);
-            switch (fileExt) {
-                case "nd" :
-                   ext = fileExt;
-                   break;
-                case "nd2" :
-                   ext = fileExt;
-                   break;
-                case "czi" :
-                   ext = fileExt;
-                   break;
-                case "lif"  :
-                    ext = fileExt;
-                    break;
-                case "ics" :
-                    ext = fileExt;
-                    break;
-                case "ics2" :
-                    ext = fileExt;
-                    break;
-                case "lsm" :
-                    ext = fileExt;
-                    break;
-                case "tif" :
-                    ext = fileExt;
-                    break;
-                case "tiff" :
-                    ext = fileExt;
-                    break;
-            }
+            if (isImageType(fileExt))
+                ext = fileExt;
         }
         return(ext);
     }
+    
+    
+    /**
+     * Check if extension is a supported image type
+     */
+    public boolean isImageType(String fileExt) {
+        switch (fileExt) {
+            case "nd" :
+            case "nd2" :
+            case "czi" :
+            case "lif" :
+            case "ics" :
+            case "ics2" :
+            case "lsm" :
+            case "tif" :
+            case "tiff" :
+                return(true);
+            default :
+                return(false);
+        }
+    }
 
         
     /**
@@ -165,19 +279,72 @@ public class Tools {
      * Find image calibration
      */
     public Calibration findImageCalib(IMetadata meta) {
+        findImageCalib(meta, 0);
+        metaCal = cal.copy();
+        return(cal);
+    }
+    
+    
+    /**
+     * Find calibration of a series
+     */
+    public Calibration findImageCalib(IMetadata meta, int series) {
         // read image calibration
-        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
+        if (meta.getPixelsPhysicalSizeX(series) != null)
+            cal.pixelWidth = meta.getPixelsPhysicalSizeX(series).value().doubleValue();
         cal.pixelHeight = cal.pixelWidth;
-        if (meta.getPixelsPhysicalSizeZ(0) != null)
-            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
+        if (meta.getPixelsPhysicalSizeZ(series) != null)
+            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(series).value().doubleValue();
         else
             cal.pixelDepth = 1;
         cal.setUnit("microns");
+        pixVol = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
         System.out.println("XY calibration = " + cal.pixelWidth + ", Z calibration = " + cal.pixelDepth);
         return(cal);
     }
     
     
+    /**
+     * Find series name, usable in file names
+     */
+    public String findSeriesName(IMetadata meta, int series) {
+        String name = meta.getImageName(series);
+        if (name == null || name.trim().isEmpty())
+            name = "Series" + (series + 1);
+        return(name.trim().replaceAll("[^A-Za-z0-9._-]+", "_"));
+    }
+    
+    
+    /**
+     * Open one channel of a series with the shared reader
+     * Reader is locked while planes are read, so several series can be opened concurrently
+     */
+    public ImagePlus openSeriesChannel(ImageProcessorReader reader, int series, int channel, String title) throws FormatException, IOException {
+        synchronized (reader) {
+            reader.setSeries(series);
+            ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+            for (int z = 0; z < reader.getSizeZ(); z++)
+                stack.addSlice(reader.openProcessors(reader.getIndex(z, channel, 0))[0]);
+            ImagePlus img = new ImagePlus(title, stack);
+            img.setCalibration(cal);
+            return(img);
+        }
+    }
+    
+    
+    /**
+     * Estimate memory needed to analyze a series
+     * Raw channels plus filtered, binary, label and drawing intermediates
+     */
+    public long estimateSeriesMemory(ImageProcessorReader reader, int series) {
+        synchronized (reader) {
+            reader.setSeries(series);
+            long voxels = (long)reader.getSizeX() * reader.getSizeY() * reader.getSizeZ();
+            return(voxels * 2 * 12);
+        }
+    }
+    
+    
     /**
      * Find channels name
      * @throws loci.common.services.DependencyException
@@ -245,10 +412,43 @@ public class Tools {
         gd.addCheckbox(" Detect astrocytes (otherwise neurons)", detectAstro);
         gd.addChoice("Astro threshold method: ", thMethods, astroThMethod);
         gd.addNumericField("Min volume (µm3): ", minCellVol, 2);
+        gd.addCheckbox(" Reuse cells detected in previous runs", useCellsCache);
+        gd.addCheckbox(" Run Cellpose on GPU (single process only)", cellposeUseGpu);
+        gd.addNumericField("Cellpose concurrent processes: ", cellposeNbProcesses, 0);
+        gd.addNumericField("Cellpose threads per process (0 = auto): ", cellposeNbThreads, 0);
+        gd.addNumericField("Cellpose timeout (s per Mvoxel, 0 = none): ", cellposeTimeoutPerMVox, 0);
+        gd.addNumericField("Cellpose retries: ", cellposeNbRetries, 0);
+        gd.addCheckbox(" Downsample neurons to Cellpose target diameter", cellposeDownsample);
+        gd.addNumericField("Cellpose target diameter (pixels): ", cellposeTargetDiam, 0);
         
         gd.addMessage("Dots detection", Font.getFont("Monospace"), Color.blue);
         gd.addChoice("Threshold method: ", thMethods, dotsThMethod);
         gd.addNumericField("Min volume (µm3): ", minDotsVol, 2);
+        gd.addCheckbox(" Export per cell and per dot tables", exportRelations);
+        gd.addCheckbox(" Save overlays and labels as OME-Zarr (instead of TIFF)", saveZarr);
+        
+        gd.addMessage("Quality check", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox(" Skip empty, saturated or out of focus series", qcCheck);
+        gd.addNumericField("Min signal (noise sigmas): ", qcMinSignal, 1);
+        gd.addNumericField("Max saturated voxels (%): ", qcMaxSaturation, 1);
+        gd.addNumericField("Min focus (0 = not checked): ", qcMinFocus, 3);
+        
+        gd.addMessage("Parameters tuning", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox(" Preview on downsampled image", preview);
+        gd.addNumericField("Preview XY binning: ", previewBin, 0);
+        gd.addNumericField("Preview nb of slices (0 = all): ", previewNbSlices, 0);
+        gd.addCheckbox(" Parameters sweep (no overlays)", sweep);
+        gd.addStringField("Sweep threshold methods: ", sweepThMethods, 25);
+        gd.addStringField("Sweep cells min volumes (µm3): ", sweepMinCellVols, 25);
+        gd.addStringField("Sweep dots min volumes (µm3): ", sweepMinDotsVols, 25);
+        
+        gd.addMessage("Watch folder", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox(" Analyze new images as they arrive (Escape to stop)", watchFolder);
+        gd.addNumericField("File stable for (s): ", watchStableTime, 0);
+        gd.addNumericField("Stop after no new image for (min, 0 = never): ", watchIdleTime, 0);
+        
+        gd.addMessage("Computing", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Filtering backend: ", ComputeBackends.CHOICES, computeBackend);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm): ", cal.pixelHeight, 3);
@@ -263,16 +463,54 @@ public class Tools {
         detectAstro = gd.getNextBoolean();
         astroThMethod = gd.getNextChoice();
         minCellVol = gd.getNextNumber();
+        useCellsCache = gd.getNextBoolean();
+        cellposeUseGpu = gd.getNextBoolean();
+        cellposeNbProcesses = Math.max(1, (int)gd.getNextNumber());
+        cellposeNbThreads = Math.max(0, (int)gd.getNextNumber());
+        cellposeTimeoutPerMVox = Math.max(0, gd.getNextNumber());
+        cellposeNbRetries = Math.max(0, (int)gd.getNextNumber());
+        cellposeDownsample = gd.getNextBoolean();
+        cellposeTargetDiam = Math.max(1, (int)gd.getNextNumber());
+        CellposePool.setNbProcesses(cellposeNbProcesses);
         
         dotsThMethod = gd.getNextChoice();
         minDotsVol = gd.getNextNumber();
+        exportRelations = gd.getNextBoolean();
+        saveZarr = gd.getNextBoolean();
+        
+        qcCheck = gd.getNextBoolean();
+        qcMinSignal = gd.getNextNumber();
+        qcMaxSaturation = gd.getNextNumber();
+        qcMinFocus = Math.max(0, gd.getNextNumber());
+        
+        preview = gd.getNextBoolean();
+        previewBin = Math.max(1, (int)gd.getNextNumber());
+        previewNbSlices = Math.max(0, (int)gd.getNextNumber());
+        sweep = gd.getNextBoolean();
+        sweepThMethods = gd.getNextString();
+        sweepMinCellVols = gd.getNextString();
+        sweepMinDotsVols = gd.getNextString();
+        
+        watchFolder = gd.getNextBoolean();
+        watchStableTime = Math.max(0, gd.getNextNumber());
+        watchIdleTime = Math.max(0, gd.getNextNumber());
+        
+        computeBackend = gd.getNextChoice();
         
         cal.pixelHeight = cal.pixelWidth = gd.getNextNumber();
         cal.pixelDepth = gd.getNextNumber();
         pixVol = cal.pixelHeight*cal.pixelWidth*cal.pixelDepth;
+        useSeriesCalib = (cal.pixelWidth == metaCal.pixelWidth && cal.pixelDepth == metaCal.pixelDepth);
         
         if (gd.wasCanceled())
-            chChoices = null;
+            return(null);
+        
+        // Ask again until sweep lists are valid
+        String sweepError = sweep ? ParameterSweep.checkLists(sweepThMethods, sweepMinCellVols, sweepMinDotsVols) : null;
+        if (sweepError != null) {
+            IJ.error("Parameters sweep", sweepError);
+            return(dialog(imagesDir, channels));
+        }
         return(chChoices);
     }
     
@@ -285,88 +523,289 @@ public class Tools {
         img.close();
     }
 
+
+    /**
+     * Create a black image from the buffer pool
+     */
+    public ImagePlus createImage(String title, int width, int height, int depth, int bitDepth) {
+        return(bufferPool.createImage(title, width, height, depth, bitDepth));
+    }
+
+
+    /**
+     * Close an image owned by the plugin and give back its slices to the buffer pool
+     */
+    public void releaseImage(ImagePlus img) {
+        bufferPool.recycle(img);
+    }
+    
+    
+    /**
+     * Drop all buffers kept by the pool, at the end of the run
+     */
+    public void releaseBuffers() {
+        bufferPool.clear();
+    }
+
        
     /**
      * Detect cells
      */
     public Objects3DIntPopulation detectCells(ImagePlus imgIn, ArrayList<Roi> rois) {
+        return(detectCells(imgIn, null, rois));
+    }
+    
+    
+    /**
+     * Detect cells, imgLevel is an optional lower resolution of imgIn used by Cellpose
+     */
+    public Objects3DIntPopulation detectCells(ImagePlus imgIn, ImagePlus imgLevel, ArrayList<Roi> rois) {
+        Objects3DIntPopulation cellsPop = segmentCells(imgIn, imgLevel, rois);
+        popFilterSize(cellsPop, minCellVol, Double.MAX_VALUE);
+        System.out.println("Nb cellular objects remaining after size filtering: "+ cellsPop.getNbObjects());
+        return(cellsPop);
+    }
+    
+    
+    /**
+     * Cellpose runs on GPU only if asked and with a single process, concurrent processes share the CPU cores
+     */
+    public boolean useCellposeGpu() {
+        return(cellposeUseGpu && cellposeNbProcesses == 1);
+    }
+    
+    
+    /**
+     * Threads per Cellpose process, cores are shared between processes if not set
+     */
+    public int getCellposeNbThreads() {
+        if (cellposeNbThreads > 0)
+            return(cellposeNbThreads);
+        return(Math.max(1, Runtime.getRuntime().availableProcessors() / cellposeNbProcesses));
+    }
+    
+    
+    /**
+     * Cellpose time limit in s for an image, 0 if no limit
+     */
+    public long getCellposeTimeout(ImagePlus img) {
+        if (cellposeTimeoutPerMVox <= 0)
+            return(0);
+        double mVox = (double)img.getWidth() * img.getHeight() * img.getNSlices() / 1e6;
+        return((long)Math.max(cellposeMinTimeout, cellposeTimeoutPerMVox * mVox));
+    }
+    
+    
+    /**
+     * XY scale factor bringing neurons to Cellpose target diameter, 1 if downsampling is off
+     */
+    public double getCellposeScale() {
+        if (!cellposeDownsample)
+            return(1);
+        return(Math.max(1, (double)cellposeDiam / cellposeTargetDiam));
+    }
+    
+    
+    /**
+     * Open the lowest resolution level of a series not smaller than maxScale
+     * Return null if the file has no pyramid or no level fits
+     */
+    public ImagePlus openSeriesLevel(ImageProcessorReader reader, int series, int channel, String title, double maxScale) throws FormatException, IOException {
+        synchronized (reader) {
+            reader.setSeries(series);
+            int fullWidth = reader.getSizeX();
+            int level = 0;
+            for (int r = 1; r < reader.getResolutionCount(); r++) {
+                reader.setResolution(r);
+                if ((double)fullWidth / reader.getSizeX() <= maxScale)
+                    level = r;
+            }
+            if (level == 0) {
+                reader.setResolution(0);
+                return(null);
+            }
+            reader.setResolution(level);
+            ImageStack stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+            for (int z = 0; z < reader.getSizeZ(); z++)
+                stack.addSlice(reader.openProcessors(reader.getIndex(z, channel, 0))[0]);
+            reader.setResolution(0);
+            ImagePlus img = new ImagePlus(title, stack);
+            Calibration levelCal = cal.copy();
+            levelCal.pixelWidth = levelCal.pixelHeight = cal.pixelWidth * fullWidth / img.getWidth();
+            img.setCalibration(levelCal);
+            System.out.println("Pyramid level " + level + " opened: " + img.getWidth() + "x" + img.getHeight());
+            return(img);
+        }
+    }
+    
+    
+    /**
+     * Average binning in XY, slices in parallel
+     */
+    public ImagePlus binXY(ImagePlus img, int factor) {
+        int width = img.getWidth() / factor, height = img.getHeight() / factor, depth = img.getNSlices();
+        ImagePlus imgBin = createImage(img.getTitle(), width, height, depth, img.getBitDepth());
+        ImageStack stack = img.getStack(), stackBin = imgBin.getStack();
+        double norm = 1.0 / (factor * factor);
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            ImageProcessor ipBin = stackBin.getProcessor(z+1);
+            int w = ip.getWidth();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    for (int dy = 0; dy < factor; dy++) {
+                        int offset = (y*factor + dy)*w + x*factor;
+                        for (int dx = 0; dx < factor; dx++)
+                            sum += ip.getf(offset + dx);
+                    }
+                    ipBin.setf(x + y*width, (float)(img.getBitDepth() == 32 ? sum*norm : Math.round(sum*norm)));
+                }
+            }
+        });
+        Calibration binCal = img.getCalibration().copy();
+        binCal.pixelWidth *= factor;
+        binCal.pixelHeight *= factor;
+        imgBin.setCalibration(binCal);
+        return(imgBin);
+    }
+    
+    
+    /**
+     * Segment cells, without size filtering
+     */
+    public Objects3DIntPopulation segmentCells(ImagePlus imgIn, ArrayList<Roi> rois) {
+        return(segmentCells(imgIn, null, rois));
+    }
+    
+    
+    /**
+     * Segment cells, without size filtering
+     * For neurons, Cellpose runs on imgLevel if given and on XY binned image if still larger than target diameter,
+     * masks are upsampled back to imgIn size
+     */
+    public Objects3DIntPopulation segmentCells(ImagePlus imgIn, ImagePlus imgLevel, ArrayList<Roi> rois) {
         ImagePlus imgOut;
         if(detectAstro) {
-            ImagePlus imgMed = median2D(imgIn, 4);
+            ImagePlus imgMed = median2D(imgIn, medianSize);
             imgOut = threshold(imgMed, astroThMethod);
-            closeImage(imgMed);
+            releaseImage(imgMed);
         } else {
+            // Reduce image to Cellpose target diameter, from pyramid level then binning
+            ImagePlus img = (imgLevel != null) ? imgLevel.duplicate() : imgIn.duplicate();
+            double scale = (double)imgIn.getWidth() / img.getWidth();
+            int binFactor = (int)(getCellposeScale() / scale);
+            if (binFactor > 1) {
+                ImagePlus imgBin = binXY(img, binFactor);
+                releaseImage(img);
+                img = imgBin;
+                scale = (double)imgIn.getWidth() / img.getWidth();
+            }
+            int diam = Math.max(1, (int)Math.round(cellposeDiam / scale));
+            if (scale > 1)
+                System.out.println("Cellpose on " + img.getWidth() + "x" + img.getHeight() + " image, diameter " + diam);
+            
             // Define CellPose settings
-            CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelPath+cellposeModel, 1, cellposeDiam, cellposeEnvDir);
+            CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelPath+cellposeModel, 1, diam, cellposeEnvDir);
             settings.setStitchThreshold(cellposeStitchTh);
-            settings.useGpu(true);
+            settings.useGpu(useCellposeGpu());
+            settings.setNbThreads(getCellposeNbThreads());
+            settings.setTimeout(getCellposeTimeout(img));
+            settings.setNbRetries(cellposeNbRetries);
 
-            // Run Cellpose
-            ImagePlus img = imgIn.duplicate();
-            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, img);
-            imgOut = cellpose.run();
-            closeImage(img);
+            // Run Cellpose in its own workspace, once a process slot is free
+            cellposeMetrics = new CellposeMetrics();
+            try {
+                imgOut = CellposePool.run(settings, img, cellposeMetrics);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                imgOut = null;
+            }
+            releaseImage(img);
+            if (imgOut == null) {
+                System.out.println("Cellpose " + cellposeMetrics.getStatus() + " on " + imgIn.getTitle() + " after "
+                        + cellposeMetrics.getNbAttempts() + " attempt(s)");
+                return(new Objects3DIntPopulation());
+            }
+            System.out.println("Cellpose time: " + cellposeMetrics.getTotalTime() + " s, process time: " + cellposeMetrics.getWallTime() + " s");
         }
-        imgOut.setCalibration(cal);
+        // Keep binary result as a bit mask, at full resolution
+        BitMask3D cellsMask = BitMask3D.fromImage(imgOut);
+        releaseImage(imgOut);
+        if (cellsMask.width != imgIn.getWidth() || cellsMask.height != imgIn.getHeight())
+            cellsMask = cellsMask.resizeXY(imgIn.getWidth(), imgIn.getHeight());
         
         // Fill ROIs in black
         if (!rois.isEmpty())
-            fillImg(imgOut, rois);
+            cellsMask.andNot(getRoisMask(rois, cellsMask.width, cellsMask.height));
         
-        Objects3DIntPopulation cellsPop = getPopFromImage(imgOut);
+        Objects3DIntPopulation cellsPop = getPopFromMask(cellsMask);
         System.out.println("Nb cellular objects detected:"+cellsPop.getNbObjects());
         popFilterOneZ(cellsPop);
-        popFilterSize(cellsPop, minCellVol, Double.MAX_VALUE);
-        System.out.println("Nb cellular objects remaining after size filtering: "+ cellsPop.getNbObjects());
-        
-        closeImage(imgOut);
         return(cellsPop);
     }
     
     
     /**
-     * 2D median filtering using CLIJ2
+     * Name of the backend actually used for filtering, after OpenCL fallback
+     * Null while the requested backend was not initialized by filtering
+     */
+    public String getComputeBackendName() {
+        return(ComputeBackends.getResolvedName(computeBackend));
+    }
+    
+    
+    /**
+     * 2D median filtering with selected compute backend
      */ 
     public ImagePlus median2D(ImagePlus img, double sizeXY) {
-       ClearCLBuffer imgCL = clij2.push(img); 
-       ClearCLBuffer imgCLMed = clij2.create(imgCL);
-       clij2.median3DSliceBySliceBox(imgCL, imgCLMed, sizeXY, sizeXY);
-       ImagePlus imgMed = clij2.pull(imgCLMed);
-       clij2.release(imgCL);
-       clij2.release(imgCLMed);
-       return(imgMed);
+        return(ComputeBackends.get(computeBackend).median2D(img, sizeXY, bufferPool));
     }
     
     
     /**
-     * Automatic thresholding using CLIJ2
+     * Automatic thresholding with selected compute backend
      */
     public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+        return(ComputeBackends.get(computeBackend).threshold(img, thMed, bufferPool));
     }
     
       
     /**
-     * Fill ROIs in black in image
+     * Return 2D mask of ROIs
      */
-    public ImagePlus fillImg(ImagePlus img, ArrayList<Roi> rois) {
-        img.getProcessor().setColor(Color.BLACK);
-        for (int s = 1; s <= img.getNSlices(); s++) {
-            img.setSlice(s);
-            for (Roi r : rois) {
-                img.setRoi(r);
-                img.getProcessor().fill(img.getRoi());
-            }
-        }
-        img.deleteRoi();
-        return(img);
-    } 
+    public BitMask3D getRoisMask(ArrayList<Roi> rois, int width, int height) {
+        ByteProcessor ip = new ByteProcessor(width, height);
+        ip.setColor(255);
+        for (Roi r : rois)
+            ip.fill(r);
+        return(BitMask3D.fromProcessor(ip));
+    }
+    
+    
+    /**
+     * Return population of 3D objects population from binary mask
+     */
+    public Objects3DIntPopulation getPopFromMask(BitMask3D mask) {
+        ImagePlus img = mask.toImagePlus("mask", 8, 255, bufferPool);
+        img.setCalibration(cal);
+        Objects3DIntPopulation pop = getPopFromImage(img);
+        releaseImage(img);
+        return(pop);
+    }
+    
+    
+    /**
+     * Return packed dots population from binary mask, with voxels intensity read in raw image (may be null)
+     */
+    public DotsPopulation getDotsFromMask(BitMask3D mask, ImagePlus imgRaw) {
+        ImagePlus img = mask.toImagePlus("mask", 8, 255, bufferPool);
+        ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(img));
+        releaseImage(img);
+        DotsPopulation dotsPop = DotsPopulation.fromLabels(labels.getImagePlus(), imgRaw);
+        releaseImage(labels.getImagePlus());
+        return(dotsPop);
+    }
     
     
     /**
@@ -376,7 +815,7 @@ public class Tools {
         ImageLabeller labeller = new ImageLabeller();
         ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
         Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        labels.closeImagePlus();
+        releaseImage(labels.getImagePlus());
         return(pop);
     }
     
@@ -399,65 +838,73 @@ public class Tools {
         pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
         pop.resetLabels();
     }
+    
+    
+    /**
+     * Return dots with size >= min and size <= max, labels are reset
+     */
+    public DotsPopulation filterDotsSize(DotsPopulation dotsPop, double min, double max) {
+        double voxVol = cal.pixelWidth*cal.pixelWidth*cal.pixelDepth;
+        return(dotsPop.filterSize(min / voxVol, max / voxVol));
+    }
       
 
     /**
      * Detect dots
      */
-    public Objects3DIntPopulation detectDots(ImagePlus imgIn, ArrayList<Roi> rois) {
-        ImagePlus imgDOG = DOG(imgIn, 1, 5);
+    public DotsPopulation detectDots(ImagePlus imgIn, ArrayList<Roi> rois) {
+        DotsPopulation dotsPop = filterDotsSize(segmentDots(imgIn, rois), minDotsVol, Double.MAX_VALUE);
+        System.out.println("Nb dots remaining after size filtering: "+ dotsPop.getNbObjects());
+        return(dotsPop);
+    }
+    
+    
+    /**
+     * Segment dots, without size filtering
+     * Raw intensities of dots voxels are gathered while labels are read
+     */
+    public DotsPopulation segmentDots(ImagePlus imgIn, ArrayList<Roi> rois) {
+        ImagePlus imgDOG = DOG(imgIn, dogSize1XY, dogSize1Z, dogSize2XY, dogSize2Z);
         ImagePlus imgBin = threshold(imgDOG, dotsThMethod);
-        imgBin.setCalibration(cal);
+        releaseImage(imgDOG);
+        BitMask3D dotsMask = BitMask3D.fromImage(imgBin);
+        releaseImage(imgBin);
         
         // Fill ROIs in black
         if (!rois.isEmpty())
-            fillImg(imgBin, rois);
+            dotsMask.andNot(getRoisMask(rois, dotsMask.width, dotsMask.height));
         
-        Objects3DIntPopulation dotsPop = getPopFromImage(imgBin);
+        DotsPopulation dotsPop = getDotsFromMask(dotsMask, imgIn);
         System.out.println("Nb dots detected:"+dotsPop.getNbObjects());
-        popFilterSize(dotsPop, minDotsVol, Double.MAX_VALUE);
-        System.out.println("Nb dots remaining after size filtering: "+ dotsPop.getNbObjects());
-        
-        closeImage(imgDOG);
-        closeImage(imgBin);
-        
         return(dotsPop);
     }
 
     
     /**
-     * Difference of Gaussians filtering using CLIJ2
+     * Difference of Gaussians filtering with selected compute backend
      */ 
     public ImagePlus DOG(ImagePlus img, double size1, double size2) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
-        ImagePlus imgDOG = clij2.pull(imgCLDOG);
-        clij2.release(imgCL);
-        clij2.release(imgCLDOG);
-        return(imgDOG);
+        return(DOG(img, size1, size1, size2, size2));
+    }
+    
+    
+    /**
+     * Difference of Gaussians filtering with selected compute backend, with different XY and Z sizes
+     */ 
+    public ImagePlus DOG(ImagePlus img, double size1XY, double size1Z, double size2XY, double size2Z) {
+        return(ComputeBackends.get(computeBackend).DOG(img, size1XY, size1Z, size2XY, size2Z, bufferPool));
     }
     
     
     /**
      * Find dots inside and outside astrocytes
      */
-    public List<Objects3DIntPopulation> findDotsInOutCells(Objects3DIntPopulation dotsPop, Objects3DIntPopulation cellsPop, ImagePlus imgDots) {
-        ImageHandler imhDots = ImageHandler.wrap(imgDots).createSameDimensions();
-        dotsPop.drawInImage(imhDots);
-        
-        ImageHandler imhDotsOut = imhDots.duplicate();
-        for (Object3DInt cell: cellsPop.getObjects3DInt()) {
-            cell.drawObject(imhDotsOut, 0);
-        }
-        Objects3DIntPopulation popOut = new Objects3DIntPopulation(imhDotsOut);
-        
-        ImagePlus imgSub = new ImageCalculator().run("subtract stack create", imhDots.getImagePlus(), imhDotsOut.getImagePlus());
-        Objects3DIntPopulation popIn = new Objects3DIntPopulation(ImageHandler.wrap(imgSub));
+    public List<DotsPopulation> findDotsInOutCells(DotsPopulation dotsPop, Objects3DIntPopulation cellsPop, ImagePlus imgDots) {
+        // Cells occupancy as a bit mask
+        BitMask3D cellsMask = BitMask3D.fromPopulation(cellsPop, imgDots.getWidth(), imgDots.getHeight(), imgDots.getNSlices());
         
-        imhDots.closeImagePlus();
-        imhDotsOut.closeImagePlus();
-        return(Arrays.asList(popIn, popOut));  
+        // Split each dot voxels between inside and outside populations, keeping dot label
+        return(Arrays.asList(dotsPop.splitByMask(cellsMask)));  
     }
     
     /**
@@ -494,34 +941,86 @@ public class Tools {
     }
     
     
+    /**
+     * Find total volume of dots in population
+     */
+    public double findPopVolume(DotsPopulation dotsPop) {
+        return(dotsPop.getNbVoxels() * cal.pixelWidth*cal.pixelWidth*cal.pixelDepth);
+    }
+    
+    
     /**
      * Draw results
      */
-    public void drawResults(Objects3DIntPopulation cellsPop, Objects3DIntPopulation dotsInCellsPop, Objects3DIntPopulation dotsOutCellsPop, 
+    public void drawResults(Objects3DIntPopulation cellsPop, DotsPopulation dotsInCellsPop, DotsPopulation dotsOutCellsPop, 
             ImagePlus imgCells, ImagePlus imgDots, String name) {
-        ImageHandler imhCells = ImageHandler.wrap(imgCells).createSameDimensions();
-        ImageHandler imhDotsIn = imhCells.createSameDimensions();
-        ImageHandler imhDotsOut = imhCells.createSameDimensions();
+        int width = imgCells.getWidth(), height = imgCells.getHeight(), depth = imgCells.getNSlices();
+        BitMask3D cellsMask = BitMask3D.fromPopulation(cellsPop, width, height, depth);
+        BitMask3D dotsInMask = dotsInCellsPop.toMask();
+        BitMask3D dotsOutMask = dotsOutCellsPop.toMask();
         
-        // Draw cells pop in blue, dotsIn pop in red and dotsOut pop in green
-        for (Object3DInt cell: cellsPop.getObjects3DInt()) 
-            cell.drawObject(imhCells, 255);
-        for (Object3DInt dot: dotsInCellsPop.getObjects3DInt()) 
-            dot.drawObject(imhDotsIn, 255);
-        for (Object3DInt dot: dotsOutCellsPop.getObjects3DInt()) 
-            dot.drawObject(imhDotsOut, 255);
-
-        ImagePlus[] imgColors = {imhDotsIn.getImagePlus(), imhDotsOut.getImagePlus(), imhCells.getImagePlus(), imgDots, imgCells};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        if (saveZarr) {
+            writeZarr(cellsPop, dotsInCellsPop, dotsOutCellsPop, new BitMask3D[]{dotsInMask, dotsOutMask, cellsMask}, 
+                    imgCells, imgDots, FilenameUtils.removeExtension(name) + ".zarr");
+            return;
+        }
+        
+        // Draw dotsIn pop in red, dotsOut pop in green and cells pop in blue, slices are composed while the file is written
+        OverlayStack stack = new OverlayStack(new BitMask3D[]{dotsInMask, dotsOutMask, cellsMask}, new ImagePlus[]{imgDots, imgCells}, 255);
+        ImagePlus imgStack = new ImagePlus("Objects", stack);
+        imgStack.setDimensions(stack.getNChannels(), depth, 1);
+        CompositeImage imgObjects = new CompositeImage(imgStack, CompositeImage.COMPOSITE);
         imgObjects.setCalibration(cal);
-        IJ.run(imgObjects, "Enhance Contrast", "saturated=0.35");
+        Color[] colors = {Color.red, Color.green, Color.blue, Color.gray, Color.cyan};
+        ImagePlus[] imgRaws = {imgDots, imgCells};
+        for (int c = 0; c < stack.getNChannels(); c++) {
+            LUT lut = LUT.createLutFromColor(colors[c]);
+            if (c < 3) {
+                lut.min = 0;
+                lut.max = 255;
+            } else {
+                double[] limits = OverlayStack.getContrastLimits(imgRaws[c-3], 0.35, 100000);
+                lut.min = limits[0];
+                lut.max = limits[1];
+            }
+            imgObjects.setChannelLut(lut, c+1);
+        }
         
         FileSaver ImgObjectsFile = new FileSaver(imgObjects);
         ImgObjectsFile.saveAsTiff(name); 
+        imgObjects.close();
+    }
+    
+    
+    /**
+     * Write overlay channels and cells, dots in and dots out labels as OME-Zarr
+     */
+    private void writeZarr(Objects3DIntPopulation cellsPop, DotsPopulation dotsInCellsPop, DotsPopulation dotsOutCellsPop,
+            BitMask3D[] masks, ImagePlus imgCells, ImagePlus imgDots, String path) {
+        int width = imgCells.getWidth(), height = imgCells.getHeight(), depth = imgCells.getNSlices();
+        ImageStack[] raws = {imgDots.getStack(), imgCells.getStack()};
+        OmeZarrWriter.PlaneSource source = (c, z) -> {
+            if (c < masks.length) {
+                FloatProcessor ip = new FloatProcessor(width, height);
+                masks[c].paintSlice(z, ip, 255);
+                return((float[])ip.getPixels());
+            }
+            return((float[])raws[c - masks.length].getProcessor(z+1).convertToFloat().getPixels());
+        };
+        double[] dotsLimits = OverlayStack.getContrastLimits(imgDots, 0.35, 100000);
+        double[] cellsLimits = OverlayStack.getContrastLimits(imgCells, 0.35, 100000);
+        Color[] colors = {Color.red, Color.green, Color.blue, Color.gray, Color.cyan};
+        double[][] windows = {{0, 255}, {0, 255}, {0, 255}, dotsLimits, cellsLimits};
+        boolean[] nearest = {true, true, true, false, false};
         
-        imhCells.closeImagePlus();
-        imhDotsIn.closeImagePlus();
-        imhDotsOut.closeImagePlus();
+        OmeZarrWriter writer = new OmeZarrWriter(path, width, height, depth, cal);
+        try {
+            writer.writeImage(FilenameUtils.getBaseName(path), 5, imgCells.getBitDepth(), source, nearest, colors, windows);
+            writer.writeLabels(new String[]{"cells", "dots_in", "dots_out"}, new OmeZarrWriter.PlaneSource[]{writer.labelSource(cellsPop),
+                (c, z) -> dotsInCellsPop.getLabelPlane(z), (c, z) -> dotsOutCellsPop.getLabelPlane(z)});
+        } catch (IOException ex) {
+            System.out.println("OME-Zarr " + path + " not saved: " + ex.getMessage());
+        }
     }
     
 }
@@ -0,0 +1,147 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+
+/**
+ * Voxel kernels on raw slice arrays (byte, short, float) and bit-packed masks
+ * Plain scalar loops over the raw arrays, each 64-voxel word is built in a register
+ * and written once, mask logic and counts then work on whole words
+ * Voxels are read unsigned for 8 and 16-bit data like ImageProcessor.getf
+ * Bits are packed 64 voxels per word from offset, as in BitMask3D slices
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public final class VoxelKernels {
+
+    private VoxelKernels() {
+    }
+
+
+    /**
+     * Set bits of voxels >= threshold
+     */
+    public static void thresholdToBits(Object pixels, double threshold, long[] words, int offset, int size) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            int th = (int)Math.ceil(threshold);
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (long)(((p[i] & 0xff) - th) >>> 31 ^ 1) << (i - start);
+                words[offset+w] |= bits;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            int th = (int)Math.ceil(threshold);
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (long)(((p[i] & 0xffff) - th) >>> 31 ^ 1) << (i - start);
+                words[offset+w] |= bits;
+            }
+        } else {
+            float[] p = (float[])pixels;
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (p[i] >= threshold ? 1L : 0L) << (i - start);
+                words[offset+w] |= bits;
+            }
+        }
+    }
+
+
+    /**
+     * Set bits of voxels different from 0, labels to binary
+     */
+    public static void nonZeroToBits(Object pixels, long[] words, int offset, int size) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (long)((-(p[i] & 0xff)) >>> 31) << (i - start);
+                words[offset+w] |= bits;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (long)((-(p[i] & 0xffff)) >>> 31) << (i - start);
+                words[offset+w] |= bits;
+            }
+        } else {
+            float[] p = (float[])pixels;
+            for (int w = 0; w*64 < size; w++) {
+                int start = w*64, end = Math.min(size, start + 64);
+                long bits = 0;
+                for (int i = start; i < end; i++)
+                    bits |= (p[i] != 0 ? 1L : 0L) << (i - start);
+                words[offset+w] |= bits;
+            }
+        }
+    }
+
+
+    /**
+     * Write value in voxels whose bit is set, skipping empty words
+     */
+    public static void fillMasked(Object pixels, long[] words, int offset, int size, double value) {
+        int nbWords = (size + 63) >>> 6;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            byte v = (byte)Math.max(0, Math.min(255, (int)value));
+            for (int w = 0; w < nbWords; w++) {
+                for (long word = words[offset+w]; word != 0; word &= word - 1)
+                    p[(w << 6) + Long.numberOfTrailingZeros(word)] = v;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            short v = (short)Math.max(0, Math.min(65535, (int)value));
+            for (int w = 0; w < nbWords; w++) {
+                for (long word = words[offset+w]; word != 0; word &= word - 1)
+                    p[(w << 6) + Long.numberOfTrailingZeros(word)] = v;
+            }
+        } else {
+            float[] p = (float[])pixels;
+            float v = (float)value;
+            for (int w = 0; w < nbWords; w++) {
+                for (long word = words[offset+w]; word != 0; word &= word - 1)
+                    p[(w << 6) + Long.numberOfTrailingZeros(word)] = v;
+            }
+        }
+    }
+
+
+    public static void and(long[] words, int offset, long[] mask, int maskOffset, int nbWords) {
+        for (int w = 0; w < nbWords; w++)
+            words[offset+w] &= mask[maskOffset+w];
+    }
+
+
+    public static void or(long[] words, int offset, long[] mask, int maskOffset, int nbWords) {
+        for (int w = 0; w < nbWords; w++)
+            words[offset+w] |= mask[maskOffset+w];
+    }
+
+
+    public static void andNot(long[] words, int offset, long[] mask, int maskOffset, int nbWords) {
+        for (int w = 0; w < nbWords; w++)
+            words[offset+w] &= ~mask[maskOffset+w];
+    }
+
+
+    /**
+     * Number of bits set in words
+     */
+    public static long count(long[] words, int offset, int nbWords) {
+        long count = 0;
+        for (int w = offset; w < offset + nbWords; w++)
+            count += Long.bitCount(words[w]);
+        return(count);
+    }
+}
@@ -0,0 +1,163 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.plugin.ImageCalculator;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+
+/**
+ * Compare voxel kernels with the ImageJ and CLIJ2 calls they replace
+ * Run with: java -cp <Fiji jars> GFAP_NeuN_IP3R1_Tools.VoxelKernelsBenchmark [width height depth]
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class VoxelKernelsBenchmark {
+
+    private static final int NB_RUNS = 7;
+
+
+    public static void main(String[] args) {
+        int width = (args.length > 2) ? Integer.parseInt(args[0]) : 1024;
+        int height = (args.length > 2) ? Integer.parseInt(args[1]) : 1024;
+        int depth = (args.length > 2) ? Integer.parseInt(args[2]) : 40;
+        System.out.println("Stack " + width + "x" + height + "x" + depth + ", median of " + NB_RUNS + " runs");
+
+        for (int bitDepth: new int[]{8, 16, 32}) {
+            ImagePlus img = randomImage(width, height, depth, bitDepth);
+            ImageStack stack = img.getStack();
+            double threshold = (bitDepth == 8) ? 128 : (bitDepth == 16) ? 2048 : 0.5;
+            ArrayList<Roi> rois = new ArrayList<>();
+            rois.add(new OvalRoi(width/8, height/8, width/3, height/3));
+            rois.add(new OvalRoi(width/2, height/2, width/3, height/4));
+            System.out.println("--- " + bitDepth + "-bit ---");
+
+            // CLIJ2 automatic threshold, push and pull included, against CPU histogram and mask kernels
+            if (ComputeBackends.hasCLIJ2()) {
+                ComputeBackend clij2 = ComputeBackends.get("CLIJ2"), cpu = ComputeBackends.get("CPU");
+                compare("Otsu threshold (vs CLIJ2 automaticThreshold)",
+                    () -> clij2.threshold(img, "Otsu", null).close(),
+                    () -> cpu.threshold(img, "Otsu", null).close());
+            } else {
+                System.out.println("Otsu threshold (vs CLIJ2 automaticThreshold): skipped, no OpenCL device");
+            }
+
+            compare("Label to binary",
+                () -> {
+                    BitMask3D mask = new BitMask3D(width, height, depth);
+                    IntStream.range(0, depth).parallel().forEach(z -> {
+                        ImageProcessor ip = stack.getProcessor(z+1);
+                        for (int y = 0; y < height; y++)
+                            for (int x = 0; x < width; x++)
+                                if (ip.getf(x + y*width) != 0)
+                                    mask.set(x, y, z);
+                    });
+                },
+                () -> BitMask3D.fromImage(img));
+
+            BitMask3D mask = BitMask3D.fromThreshold(img, threshold);
+            BitMask3D other = BitMask3D.fromImage(img);
+            // Both operate in place on copies made outside of timed runs
+            ImagePlus imgA = img.duplicate(), imgB = img.duplicate();
+            BitMask3D maskA = mask.duplicate();
+            compare("Mask AND NOT (vs ImageCalculator subtract)",
+                () -> new ImageCalculator().run("Subtract stack", imgA, imgB),
+                () -> maskA.andNot(other));
+            imgA.close();
+            imgB.close();
+
+            compare("Mask count (vs histogram count)",
+                () -> {
+                    long count = 0;
+                    for (int z = 1; z <= depth; z++)
+                        count += stack.getProcessor(z).getPixelCount() - stack.getProcessor(z).getStats().histogram()[0];
+                },
+                () -> mask.count());
+
+            ImagePlus imgFill = img.duplicate(), imgFillKernel = img.duplicate();
+            compare("Masked fill (ROIs)",
+                () -> {
+                    imgFill.getProcessor().setColor(Color.BLACK);
+                    for (int s = 1; s <= depth; s++) {
+                        imgFill.setSlice(s);
+                        for (Roi r: rois) {
+                            imgFill.setRoi(r);
+                            imgFill.getProcessor().fill(imgFill.getRoi());
+                        }
+                    }
+                },
+                () -> {
+                    // 2D ROIs mask painted in each slice
+                    ByteProcessor ipRois = new ByteProcessor(width, height);
+                    ipRois.setColor(255);
+                    for (Roi r: rois)
+                        ipRois.fill(r);
+                    BitMask3D roisMask = BitMask3D.fromProcessor(ipRois);
+                    ImageStack stackFill = imgFillKernel.getStack();
+                    IntStream.range(0, depth).parallel().forEach(z -> roisMask.paintSlice(0, stackFill.getProcessor(z+1), 0));
+                });
+            imgFill.close();
+            imgFillKernel.close();
+
+            compare("Paint mask",
+                () -> {
+                    ImagePlus imgPaint = IJ.createImage("paint", bitDepth+"-bit black", width, height, depth);
+                    ImageStack stackPaint = imgPaint.getStack();
+                    for (int z = 0; z < depth; z++) {
+                        ImageProcessor ip = stackPaint.getProcessor(z+1);
+                        for (int y = 0; y < height; y++)
+                            for (int x = 0; x < width; x++)
+                                if (mask.get(x, y, z))
+                                    ip.setf(x + y*width, 255);
+                    }
+                },
+                () -> mask.toImagePlus("paint", bitDepth, 255, null));
+            img.close();
+        }
+    }
+
+
+    private static ImagePlus randomImage(int width, int height, int depth, int bitDepth) {
+        ImagePlus img = IJ.createImage("random", bitDepth+"-bit black", width, height, depth);
+        ImageStack stack = img.getStack();
+        double max = (bitDepth == 8) ? 255 : (bitDepth == 16) ? 4095 : 1;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            Random random = new Random(z);
+            ImageProcessor ip = stack.getProcessor(z+1);
+            for (int i = 0; i < width*height; i++)
+                ip.setf(i, (random.nextInt(4) == 0) ? 0 : (float)(random.nextDouble() * max));
+        });
+        return(img);
+    }
+
+
+    private static void compare(String name, Runnable reference, Runnable kernel) {
+        double refTime = time(reference);
+        double kernelTime = time(kernel);
+        System.out.println(String.format("%-45s reference %8.1f ms   kernels %8.1f ms   x%.1f", name, refTime, kernelTime, refTime / kernelTime));
+    }
+
+
+    /**
+     * Median time in ms, after one warm-up run
+     */
+    private static double time(Runnable task) {
+        task.run();
+        double[] times = new double[NB_RUNS];
+        for (int r = 0; r < NB_RUNS; r++) {
+            long start = System.nanoTime();
+            task.run();
+            times[r] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return(times[NB_RUNS / 2]);
+    }
+}
@@ -0,0 +1,643 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.plugin.ImageCalculator;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import ij.process.StackConverter;
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageInt;
+import mcib3d.image3d.ImageLabeller;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Headless equivalence of the fast paths with the baseline pipeline
+ * Baseline paths are the original code: ROIs filled with ImageJ, binary images labelled by mcib3d, objects filtered
+ * with MeasureVolume, dots inside / outside cells split by drawing labels images and subtracting them with ImageCalculator
+ * Filtering runs on the CPU backend, checked against the CLIJ2 conventions it reproduces, and against CLIJ2 itself
+ * when an OpenCL device is available
+ * Times of both paths are printed for each pipeline step, single runs on the synthetic stacks
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class PipelineEquivalenceTest {
+
+    // Intensities are summed in a different order
+    private static final double INTENSITY_REL_TOL = 1e-6;
+    // Distance maps are stored as floats
+    private static final double DISTANCE_TOL = 1e-4;
+    // CLIJ2 and ImageJ Gaussian kernels differ slightly
+    private static final double DOG_MIN_DICE = 0.95;
+
+    private static final int WIDTH = 256, HEIGHT = 256, DEPTH = 24;
+    private static ImagePlus imgCells, imgDots;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+
+    @BeforeClass
+    public static void createImages() {
+        ImagePlus[] synthetic = syntheticImages(WIDTH, HEIGHT, DEPTH, 42);
+        imgCells = synthetic[0];
+        imgDots = synthetic[1];
+    }
+
+
+    private static Tools createTools() {
+        Tools tools = new Tools();
+        tools.detectAstro = true;
+        tools.computeBackend = "CPU";
+        tools.cal = new Calibration();
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.1;
+        tools.cal.pixelDepth = 0.3;
+        tools.pixVol = tools.cal.pixelWidth * tools.cal.pixelHeight * tools.cal.pixelDepth;
+        return(tools);
+    }
+
+
+    private static ArrayList<Roi> createRois() {
+        ArrayList<Roi> rois = new ArrayList<>();
+        rois.add(new OvalRoi(WIDTH/8, HEIGHT/8, WIDTH/4, HEIGHT/5));
+        rois.add(new OvalRoi(WIDTH/2, HEIGHT/2, WIDTH/5, HEIGHT/4));
+        return(rois);
+    }
+
+
+    @Test
+    public void cpuMedianIsBoxMedian() {
+        for (int bitDepth: new int[]{8, 16}) {
+            ImagePlus img = randomImage(64, 48, 4, bitDepth, 1);
+            ImagePlus imgMed = new CPUBackend().median2D(img, 4, null);
+            float[][] ref = referenceMedian(img, 4);
+            for (int z = 0; z < img.getNSlices(); z++)
+                assertArrayEquals(bitDepth+"-bit median slice "+z, ref[z], (float[])imgMed.getStack().getProcessor(z+1).convertToFloat().getPixels(), 0);
+        }
+    }
+
+
+    @Test
+    public void cpuThresholdIsHistogramThreshold() {
+        for (int bitDepth: new int[]{8, 16, 32}) {
+            ImagePlus img = randomImage(128, 96, 6, bitDepth, 2);
+            for (String method: new String[]{"Otsu", "Triangle", "Default", "Li"}) {
+                ImagePlus imgBin = new CPUBackend().threshold(img, method, null);
+                assertSameMask(bitDepth+"-bit "+method+" threshold", referenceThreshold(img, method), BitMask3D.fromImage(imgBin));
+            }
+        }
+    }
+
+
+    @Test
+    public void cpuFiltersMatchCLIJ2() {
+        Assume.assumeTrue("No OpenCL device", ComputeBackends.hasCLIJ2());
+        ComputeBackend clij2 = ComputeBackends.get("CLIJ2"), cpu = ComputeBackends.get("CPU");
+
+        ImagePlus refMed = clij2.median2D(imgCells, 4, null), fastMed = cpu.median2D(imgCells, 4, null);
+        for (int z = 0; z < DEPTH; z++)
+            assertArrayEquals("Median slice "+z, (float[])refMed.getStack().getProcessor(z+1).convertToFloat().getPixels(),
+                    (float[])fastMed.getStack().getProcessor(z+1).convertToFloat().getPixels(), 0);
+        assertSameMask("Triangle threshold", BitMask3D.fromImage(clij2.threshold(refMed, "Triangle", null)),
+                BitMask3D.fromImage(cpu.threshold(refMed, "Triangle", null)));
+
+        BitMask3D refDots = BitMask3D.fromImage(cpu.threshold(clij2.DOG(imgDots, 1, 1, 5, 5, null), "Otsu", null));
+        BitMask3D fastDots = BitMask3D.fromImage(cpu.threshold(cpu.DOG(imgDots, 1, 1, 5, 5, null), "Otsu", null));
+        long common = refDots.duplicate().and(fastDots).count();
+        double dice = 2.0 * common / (refDots.count() + fastDots.count());
+        assertTrue("DoG dots Dice " + dice, dice >= DOG_MIN_DICE);
+    }
+
+
+    @Test
+    public void pipeline16BitMatchesBaseline() {
+        checkPipeline(createTools(), imgCells, imgDots);
+    }
+
+
+    @Test
+    public void pipeline8BitMatchesBaseline() {
+        checkPipeline(createTools(), to8Bit(imgCells), to8Bit(imgDots));
+    }
+
+
+    /**
+     * Cells, dots and dots inside / outside cells, with ROIs, from the baseline and fast paths
+     */
+    private void checkPipeline(Tools tools, ImagePlus cells, ImagePlus dots) {
+        ArrayList<Roi> rois = createRois();
+        cells.setCalibration(tools.cal);
+        dots.setCalibration(tools.cal);
+        String bits = dots.getBitDepth() + "-bit ";
+
+        // Single timed run of each path on the same inputs, reported alongside the checks
+        long start = System.nanoTime();
+        Objects3DIntPopulation refCells = baselineDetectCells(tools, cells, rois);
+        long refTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        Objects3DIntPopulation fastCells = tools.detectCells(cells, rois);
+        printTimes(bits + "detectCells", refTime, System.nanoTime() - start);
+        assertTrue(bits + "cells detected", refCells.getNbObjects() > 0);
+        assertSameObjects(bits + "cells", signatures(refCells, null), signatures(fastCells, null), false, false);
+
+        start = System.nanoTime();
+        Objects3DIntPopulation refDots = baselineDetectDots(tools, dots, rois);
+        refTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        DotsPopulation fastDots = tools.detectDots(dots, rois);
+        printTimes(bits + "detectDots", refTime, System.nanoTime() - start);
+        assertTrue(bits + "more than 255 dots", refDots.getNbObjects() > 255);
+        assertSameObjects(bits + "dots", signatures(refDots, dots), signatures(fastDots), true, false);
+        assertEquals(bits + "dots volume", tools.findPopVolume(refDots), tools.findPopVolume(fastDots), 1e-9);
+
+        // Baseline draws dots labels in an image of the dots bit depth, which cannot hold more than 255 labels in 8-bit
+        ImagePlus imgLabels = (dots.getBitDepth() == 8) ? IJ.createImage("Labels", "32-bit black", WIDTH, HEIGHT, DEPTH) : dots;
+        start = System.nanoTime();
+        List<Objects3DIntPopulation> refInOut = baselineFindDotsInOutCells(refDots, refCells, imgLabels);
+        refTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<DotsPopulation> fastInOut = tools.findDotsInOutCells(fastDots, fastCells, dots);
+        printTimes(bits + "findDotsInOutCells", refTime, System.nanoTime() - start);
+        String[] names = {"dots inside cells", "dots outside cells"};
+        for (int i = 0; i < 2; i++) {
+            assertSameObjects(bits + names[i], signatures(refInOut.get(i), null), signatures(fastInOut.get(i)), false, false);
+            assertEquals(bits + names[i] + " volume", tools.findPopVolume(refInOut.get(i)), tools.findPopVolume(fastInOut.get(i)), 1e-9);
+        }
+    }
+
+
+    /**
+     * Print reference and fast paths times of a comparison
+     */
+    private static void printTimes(String name, long refTime, long fastTime) {
+        System.out.println(String.format("%-28s reference %8.1f ms, fast %8.1f ms, x%.1f", name, refTime / 1e6, fastTime / 1e6,
+                (double)refTime / Math.max(1, fastTime)));
+    }
+
+
+    @Test
+    public void cellsCacheRoundTrip() throws IOException {
+        Tools tools = createTools();
+        Objects3DIntPopulation cells = tools.detectCells(imgCells, new ArrayList<>());
+        CellsCache cache = new CellsCache(tools, tmpFolder.newFolder("cache").getPath());
+        String key = cache.getKey("synthetic.tif", "synthetic.roi", 0, 0);
+        assertNull("Empty cache", cache.load(key, WIDTH, HEIGHT, DEPTH));
+
+        cache.save(key, cells, WIDTH, HEIGHT, DEPTH);
+        Objects3DIntPopulation loaded = cache.load(key, WIDTH, HEIGHT, DEPTH);
+        assertNotNull("Cached cells", loaded);
+        assertSameObjects("Cached cells", signatures(cells, null), signatures(loaded, null), false, true);
+        assertNull("Other dimensions", cache.load(key, WIDTH+1, HEIGHT, DEPTH));
+
+        // Astrocytes depend on the requested backend, and on its CPU fallback once CLIJ2 was initialized
+        tools.minCellVol++;
+        assertNotEquals("Other parameters", key, cache.getKey("synthetic.tif", "synthetic.roi", 0, 0));
+        tools.minCellVol--;
+        tools.computeBackend = "CLIJ2";
+        assertNotEquals("Other backend", key, cache.getKey("synthetic.tif", "synthetic.roi", 0, 0));
+        assertEquals("Initialized backend", ComputeBackends.hasCLIJ2() ? "CLIJ2" : "CPU", tools.getComputeBackendName());
+        assertNotEquals("CLIJ2 or its fallback", key, cache.getKey("synthetic.tif", "synthetic.roi", 0, 0));
+    }
+
+
+    @Test
+    public void nearestCellMatchesBruteForce() throws IOException {
+        Tools tools = createTools();
+        Objects3DIntPopulation cells = tools.detectCells(imgCells, new ArrayList<>());
+        DotsPopulation dots = tools.detectDots(imgDots, new ArrayList<>());
+        List<double[]> rows = dotsTable(tools, cells, dots);
+
+        // Cells surface voxels: labelled voxels with a 6-neighbour of another label
+        ImagePlus imgLabels = IJ.createImage("Labels", "32-bit black", WIDTH, HEIGHT, DEPTH);
+        cells.drawInImage(ImageHandler.wrap(imgLabels));
+        ImageStack stack = imgLabels.getStack();
+        int maxLabel = 0;
+        List<int[]> surface = new ArrayList<>();
+        for (int z = 0; z < DEPTH; z++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int label = (int)stack.getVoxel(x, y, z);
+                    maxLabel = Math.max(maxLabel, label);
+                    if (label != 0 && isSurface(stack, x, y, z, label))
+                        surface.add(new int[]{x, y, z, label});
+                }
+            }
+        }
+
+        double pw = tools.cal.pixelWidth, pd = tools.cal.pixelDepth;
+        int nbOutside = 0;
+        for (double[] row: rows) {
+            // Dots inside a cell have no nearest cell search
+            if (row[7] != 0)
+                continue;
+            nbOutside++;
+            double x = row[2] / pw, y = row[3] / pw, z = row[4] / pd;
+            double[] labelDist = new double[maxLabel+1];
+            Arrays.fill(labelDist, Double.MAX_VALUE);
+            for (int[] v: surface) {
+                double dx = (v[0] - x) * pw, dy = (v[1] - y) * pw, dz = (v[2] - z) * pd;
+                labelDist[v[3]] = Math.min(labelDist[v[3]], Math.sqrt(dx*dx + dy*dy + dz*dz));
+            }
+            double best = Arrays.stream(labelDist).min().getAsDouble();
+            assertEquals("Distance of dot " + (int)row[1], best, row[9], DISTANCE_TOL);
+            // Nearest label may be any of equally distant cells
+            assertEquals("Nearest cell of dot " + (int)row[1], best, labelDist[(int)row[8]], DISTANCE_TOL);
+        }
+        assertTrue("Dots outside cells", nbOutside > 0);
+
+        // Without cells, dots have no nearest cell
+        for (double[] row: dotsTable(tools, new Objects3DIntPopulation(), dots)) {
+            assertEquals("Nearest cell without cells", 0, row[8], 0);
+            assertTrue("Distance without cells", Double.isNaN(row[9]));
+        }
+    }
+
+
+    /**
+     * Dots table columns as numbers, image name column left to 0
+     */
+    private List<double[]> dotsTable(Tools tools, Objects3DIntPopulation cells, DotsPopulation dots) throws IOException {
+        DotsCellsRelations relations = new DotsCellsRelations(tools, cells, WIDTH, HEIGHT, DEPTH);
+        relations.assignDots(dots);
+        File file = tmpFolder.newFile();
+        relations.writeDotsTable(file.getPath(), "synthetic");
+        relations.release();
+        List<double[]> rows = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (String line: lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            double[] row = new double[fields.length];
+            for (int i = 1; i < fields.length; i++)
+                row[i] = Double.parseDouble(fields[i]);
+            rows.add(row);
+        }
+        return(rows);
+    }
+
+
+    private static boolean isSurface(ImageStack stack, int x, int y, int z, int label) {
+        int[][] neighbours = {{-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1}};
+        for (int[] n: neighbours) {
+            int nx = x + n[0], ny = y + n[1], nz = z + n[2];
+            if (nx >= 0 && nx < WIDTH && ny >= 0 && ny < HEIGHT && nz >= 0 && nz < DEPTH && (int)stack.getVoxel(nx, ny, nz) != label)
+                return(true);
+        }
+        return(false);
+    }
+
+
+    @Test
+    public void distanceMapMatchesBruteForce() {
+        Tools tools = createTools();
+        int width = 24, height = 20, depth = 7;
+        BitMask3D mask = new BitMask3D(width, height, depth);
+        double[][] spheres = {{6, 7, 2, 4}, {16, 12, 4, 5}};
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    for (double[] s: spheres)
+                        if ((x-s[0])*(x-s[0]) + (y-s[1])*(y-s[1]) + 9*(z-s[2])*(z-s[2]) <= s[3]*s[3])
+                            mask.set(x, y, z);
+
+        DistanceMap map = DistanceMap.compute(tools, mask);
+        double pw = tools.cal.pixelWidth, pd = tools.cal.pixelDepth;
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // Distance to the nearest voxel of the other side
+                    boolean inside = mask.get(x, y, z);
+                    double best = Double.MAX_VALUE;
+                    for (int k = 0; k < depth; k++)
+                        for (int j = 0; j < height; j++)
+                            for (int i = 0; i < width; i++)
+                                if (mask.get(i, j, k) != inside) {
+                                    double dx = (i - x) * pw, dy = (j - y) * pw, dz = (k - z) * pd;
+                                    best = Math.min(best, dx*dx + dy*dy + dz*dz);
+                                }
+                    double expected = inside ? -Math.sqrt(best) : Math.sqrt(best);
+                    assertEquals("Distance at " + x + "," + y + "," + z, expected, map.getDistance(x, y, z), DISTANCE_TOL);
+                }
+            }
+        }
+        map.release();
+
+        // No foreground: no distance
+        DistanceMap emptyMap = DistanceMap.compute(tools, new BitMask3D(width, height, depth));
+        assertTrue("Empty mask", Float.isNaN(emptyMap.getDistance(width/2, height/2, depth/2)));
+        emptyMap.release();
+    }
+
+
+    /**
+     * Baseline astrocytes detection, on the backend filtered image
+     */
+    private static Objects3DIntPopulation baselineDetectCells(Tools tools, ImagePlus imgIn, ArrayList<Roi> rois) {
+        ImagePlus imgMed = tools.median2D(imgIn, tools.medianSize);
+        ImagePlus imgOut = tools.threshold(imgMed, tools.astroThMethod);
+        imgMed.close();
+        imgOut.setCalibration(tools.cal);
+        if (!rois.isEmpty())
+            baselineFillImg(imgOut, rois);
+        Objects3DIntPopulation cellsPop = baselineGetPopFromImage(imgOut);
+        baselinePopFilterOneZ(cellsPop);
+        baselinePopFilterSize(tools, cellsPop, tools.minCellVol, Double.MAX_VALUE);
+        imgOut.close();
+        return(cellsPop);
+    }
+
+
+    /**
+     * Baseline dots detection, on the backend filtered image
+     */
+    private static Objects3DIntPopulation baselineDetectDots(Tools tools, ImagePlus imgIn, ArrayList<Roi> rois) {
+        ImagePlus imgDOG = tools.DOG(imgIn, tools.dogSize1XY, tools.dogSize1Z, tools.dogSize2XY, tools.dogSize2Z);
+        ImagePlus imgBin = tools.threshold(imgDOG, tools.dotsThMethod);
+        imgBin.setCalibration(tools.cal);
+        if (!rois.isEmpty())
+            baselineFillImg(imgBin, rois);
+        Objects3DIntPopulation dotsPop = baselineGetPopFromImage(imgBin);
+        baselinePopFilterSize(tools, dotsPop, tools.minDotsVol, Double.MAX_VALUE);
+        imgDOG.close();
+        imgBin.close();
+        return(dotsPop);
+    }
+
+
+    private static void baselineFillImg(ImagePlus img, ArrayList<Roi> rois) {
+        img.getProcessor().setColor(Color.BLACK);
+        for (int s = 1; s <= img.getNSlices(); s++) {
+            img.setSlice(s);
+            for (Roi r : rois) {
+                img.setRoi(r);
+                img.getProcessor().fill(img.getRoi());
+            }
+        }
+        img.deleteRoi();
+    }
+
+
+    private static Objects3DIntPopulation baselineGetPopFromImage(ImagePlus img) {
+        ImageLabeller labeller = new ImageLabeller();
+        ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
+        labels.closeImagePlus();
+        return(pop);
+    }
+
+
+    private static void baselinePopFilterOneZ(Objects3DIntPopulation pop) {
+        pop.getObjects3DInt().removeIf(p -> (p.getObject3DPlanes().size() == 1));
+        pop.resetLabels();
+    }
+
+
+    private static void baselinePopFilterSize(Tools tools, Objects3DIntPopulation pop, double min, double max) {
+        pop.setVoxelSizeXY(tools.cal.pixelWidth);
+        pop.setVoxelSizeZ(tools.cal.pixelDepth);
+        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
+        pop.resetLabels();
+    }
+
+
+    /**
+     * Baseline dots inside / outside cells, labels drawn in an image with the dimensions of imgDots
+     */
+    private static List<Objects3DIntPopulation> baselineFindDotsInOutCells(Objects3DIntPopulation dotsPop, Objects3DIntPopulation cellsPop, ImagePlus imgDots) {
+        ImageHandler imhDots = ImageHandler.wrap(imgDots).createSameDimensions();
+        dotsPop.drawInImage(imhDots);
+
+        ImageHandler imhDotsOut = imhDots.duplicate();
+        for (Object3DInt cell: cellsPop.getObjects3DInt()) {
+            cell.drawObject(imhDotsOut, 0);
+        }
+        Objects3DIntPopulation popOut = new Objects3DIntPopulation(imhDotsOut);
+
+        ImagePlus imgSub = new ImageCalculator().run("subtract stack create", imhDots.getImagePlus(), imhDotsOut.getImagePlus());
+        Objects3DIntPopulation popIn = new Objects3DIntPopulation(ImageHandler.wrap(imgSub));
+
+        imhDots.closeImagePlus();
+        imhDotsOut.closeImagePlus();
+        return(Arrays.asList(popIn, popOut));
+    }
+
+
+    /**
+     * Median of (2r+1)^2 box of each voxel in its slice, edge voxels repeated, as CLIJ2 median3DSliceBySliceBox
+     */
+    private static float[][] referenceMedian(ImagePlus img, int r) {
+        int width = img.getWidth(), height = img.getHeight();
+        float[][] med = new float[img.getNSlices()][width*height];
+        float[] box = new float[(2*r+1) * (2*r+1)];
+        for (int z = 0; z < img.getNSlices(); z++) {
+            ImageProcessor ip = img.getStack().getProcessor(z+1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int n = 0;
+                    for (int dy = -r; dy <= r; dy++)
+                        for (int dx = -r; dx <= r; dx++)
+                            box[n++] = ip.getf(Math.min(width-1, Math.max(0, x+dx)), Math.min(height-1, Math.max(0, y+dy)));
+                    Arrays.sort(box);
+                    med[z][x + y*width] = box[box.length/2];
+                }
+            }
+        }
+        return(med);
+    }
+
+
+    /**
+     * As CLIJ2 automaticThreshold: 256 bins between stack min and max (0-255 for 8-bit),
+     * voxels in bins above the threshold bin are foreground
+     */
+    private static BitMask3D referenceThreshold(ImagePlus img, String method) {
+        ImageStack stack = img.getStack();
+        int size = img.getWidth() * img.getHeight();
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (int z = 1; z <= img.getNSlices(); z++) {
+            for (int i = 0; i < size; i++) {
+                min = Math.min(min, stack.getProcessor(z).getf(i));
+                max = Math.max(max, stack.getProcessor(z).getf(i));
+            }
+        }
+        if (img.getBitDepth() == 8) {
+            min = 0;
+            max = 255;
+        }
+        int[] histogram = new int[256];
+        double scale = (max > min) ? 256 / (max - min) : 0;
+        for (int z = 1; z <= img.getNSlices(); z++)
+            for (int i = 0; i < size; i++)
+                histogram[Math.min(255, (int)((stack.getProcessor(z).getf(i) - min) * scale))]++;
+        int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+        double thValue = min + (bin + 1) * (max - min) / 256;
+
+        BitMask3D mask = new BitMask3D(img.getWidth(), img.getHeight(), img.getNSlices());
+        for (int z = 0; z < img.getNSlices(); z++)
+            for (int y = 0; y < img.getHeight(); y++)
+                for (int x = 0; x < img.getWidth(); x++)
+                    if (stack.getProcessor(z+1).getf(x, y) >= thValue)
+                        mask.set(x, y, z);
+        return(mask);
+    }
+
+
+    private static void assertSameMask(String check, BitMask3D ref, BitMask3D fast) {
+        assertEquals(check + ": voxels missing", 0, ref.duplicate().andNot(fast).count());
+        assertEquals(check + ": voxels added", 0, fast.duplicate().andNot(ref).count());
+    }
+
+
+    /**
+     * Objects keyed by their first voxel (x + y*width + z*width*height): {nb voxels, label, intensity sum}
+     * Intensity is read in imgRaw for each voxel, if given
+     */
+    private static Map<Long, double[]> signatures(Objects3DIntPopulation pop, ImagePlus imgRaw) {
+        ImageStack stack = (imgRaw != null) ? imgRaw.getStack() : null;
+        Map<Long, double[]> signatures = new HashMap<>();
+        for (Object3DInt obj: pop.getObjects3DInt()) {
+            long first = Long.MAX_VALUE;
+            double nbVoxels = 0, sum = 0;
+            for (Object3DPlane plane: obj.getObject3DPlanes()) {
+                for (VoxelInt v: plane.getVoxels()) {
+                    first = Math.min(first, v.getX() + (long)v.getY()*WIDTH + (long)v.getZ()*WIDTH*HEIGHT);
+                    nbVoxels++;
+                    if (stack != null)
+                        sum += stack.getProcessor(v.getZ()+1).getf(v.getX(), v.getY());
+                }
+            }
+            if (nbVoxels > 0)
+                signatures.put(first, new double[]{nbVoxels, obj.getLabel(), sum});
+        }
+        return(signatures);
+    }
+
+
+    private static Map<Long, double[]> signatures(DotsPopulation pop) {
+        Map<Long, double[]> signatures = new HashMap<>();
+        for (int d = 0; d < pop.getNbObjects(); d++) {
+            int i = pop.getFirst(d);
+            long first = pop.getX(i) + (long)pop.getY(i)*pop.width + (long)pop.getZ(i)*pop.width*pop.height;
+            signatures.put(first, new double[]{pop.getNbVoxels(d), pop.getLabel(d), pop.getIntensitySum(d)});
+        }
+        return(signatures);
+    }
+
+
+    /**
+     * Same objects (first voxel and voxels count), and same intensity sums or labels if asked
+     */
+    private static void assertSameObjects(String check, Map<Long, double[]> ref, Map<Long, double[]> fast, boolean intensity, boolean labels) {
+        assertEquals(check + ": nb objects", ref.size(), fast.size());
+        for (Map.Entry<Long, double[]> entry: ref.entrySet()) {
+            double[] r = entry.getValue(), f = fast.get(entry.getKey());
+            assertNotNull(check + ": no object starting at voxel " + entry.getKey(), f);
+            assertEquals(check + ": voxels of object at " + entry.getKey(), r[0], f[0], 0);
+            if (labels)
+                assertEquals(check + ": label of object at " + entry.getKey(), r[1], f[1], 0);
+            if (intensity)
+                assertEquals(check + ": intensity of object at " + entry.getKey(), r[2], f[2], INTENSITY_REL_TOL * Math.max(1, Math.abs(r[2])));
+        }
+    }
+
+
+    private static ImagePlus to8Bit(ImagePlus img) {
+        ImagePlus img8 = img.duplicate();
+        img8.setDisplayRange(0, 2500);
+        new StackConverter(img8).convertToGray8();
+        return(img8);
+    }
+
+
+    private static ImagePlus randomImage(int width, int height, int depth, int bitDepth, long seed) {
+        ImagePlus img = IJ.createImage("Random", bitDepth+"-bit black", width, height, depth);
+        ImageStack stack = img.getStack();
+        double max = (bitDepth == 8) ? 255 : (bitDepth == 16) ? 4095 : 1;
+        Random random = new Random(seed);
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            for (int i = 0; i < width*height; i++)
+                ip.setf(i, (float)((bitDepth == 32) ? random.nextDouble() * max : random.nextInt((int)max + 1)));
+        }
+        return(img);
+    }
+
+
+    /**
+     * 16-bit cells (ellipsoids) and dots (Gaussian spots) channels with background and noise
+     */
+    private static ImagePlus[] syntheticImages(int width, int height, int depth, long seed) {
+        Random random = new Random(seed);
+        int nbCells = 12;
+        double[][] cells = new double[nbCells][];
+        for (int c = 0; c < nbCells; c++)
+            cells[c] = new double[]{random.nextDouble()*width, random.nextDouble()*height, random.nextDouble()*depth,
+                                    15 + 15*random.nextDouble(), 4 + 4*random.nextDouble()};
+        int nbDots = 1500;
+        double[][] dots = new double[nbDots][];
+        for (int d = 0; d < nbDots; d++)
+            dots[d] = new double[]{random.nextDouble()*width, random.nextDouble()*height, random.nextDouble()*depth, 400 + 800*random.nextDouble()};
+
+        ImagePlus imgCells = IJ.createImage("Synthetic cells", "16-bit black", width, height, depth);
+        ImagePlus imgDots = IJ.createImage("Synthetic dots", "16-bit black", width, height, depth);
+        ImageStack stackCells = imgCells.getStack(), stackDots = imgDots.getStack();
+        double sigmaXY = 1.2, sigmaZ = 0.8;
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            Random noise = new Random(seed + z);
+            ImageProcessor ipCells = stackCells.getProcessor(z+1), ipDots = stackDots.getProcessor(z+1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    boolean inCell = false;
+                    for (double[] c: cells) {
+                        double dx = (x - c[0]) / c[3], dy = (y - c[1]) / c[3], dz = (z - c[2]) / c[4];
+                        inCell |= dx*dx + dy*dy + dz*dz <= 1;
+                    }
+                    ipCells.setf(x, y, (float)Math.max(0, 200 + (inCell ? 1500 : 0) + 30*noise.nextGaussian()));
+                    ipDots.setf(x, y, (float)Math.max(0, 100 + 15*noise.nextGaussian()));
+                }
+            }
+            for (double[] d: dots) {
+                double dz = (z - d[2]) / sigmaZ;
+                if (Math.abs(dz) > 3)
+                    continue;
+                for (int y = Math.max(0, (int)(d[1] - 3*sigmaXY)); y <= Math.min(height-1, (int)(d[1] + 3*sigmaXY)); y++) {
+                    for (int x = Math.max(0, (int)(d[0] - 3*sigmaXY)); x <= Math.min(width-1, (int)(d[0] + 3*sigmaXY)); x++) {
+                        double dx = (x - d[0]) / sigmaXY, dy = (y - d[1]) / sigmaXY;
+                        ipDots.setf(x, y, (float)(ipDots.getf(x, y) + d[3] * Math.exp(-(dx*dx + dy*dy + dz*dz) / 2)));
+                    }
+                }
+            }
+        });
+        return(new ImagePlus[]{imgCells, imgDots});
+    }
+}
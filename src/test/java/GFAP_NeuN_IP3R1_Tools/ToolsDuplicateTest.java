@@ -0,0 +1,74 @@
+package GFAP_NeuN_IP3R1_Tools;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+/**
+ * Series run on a copy of tools, so the copy must keep every dialog parameter
+ * Public parameters are found by reflection, a new parameter missing from Tools.duplicate() fails this test
+ * @author Philippe Mailly & Héloïse Monnet
+ */
+public class ToolsDuplicateTest {
+
+    // Outcome of last Cellpose run, per series state and not a parameter
+    private static final List<String> NOT_COPIED = Arrays.asList("cellposeMetrics");
+
+
+    @Test
+    public void duplicateKeepsParameters() throws IllegalAccessException {
+        Tools tools = new Tools();
+        int nbChecked = 0;
+        for (Field field: Tools.class.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || NOT_COPIED.contains(field.getName()))
+                continue;
+            Object value = field.get(tools);
+            Object changed = changedValue(field, value);
+            // Calibration is changed in place below
+            if (changed != null)
+                field.set(tools, changed);
+            nbChecked++;
+        }
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.123;
+        tools.cal.pixelDepth = 0.456;
+
+        Tools copy = tools.duplicate();
+        for (Field field: Tools.class.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || NOT_COPIED.contains(field.getName()))
+                continue;
+            if (field.getName().equals("cal")) {
+                assertEquals("cal.pixelWidth", tools.cal.pixelWidth, copy.cal.pixelWidth, 0);
+                assertEquals("cal.pixelDepth", tools.cal.pixelDepth, copy.cal.pixelDepth, 0);
+            } else {
+                assertEquals(field.getName() + " not copied by Tools.duplicate()", field.get(tools), field.get(copy));
+            }
+        }
+        assertNotEquals("Public parameters found", 0, nbChecked);
+    }
+
+
+    /**
+     * A value different from the default one, null for fields changed in place
+     */
+    private Object changedValue(Field field, Object value) {
+        Class<?> type = field.getType();
+        if (type == boolean.class)
+            return(!(Boolean)value);
+        if (type == int.class)
+            return((Integer)value + 7);
+        if (type == long.class)
+            return((Long)value + 7);
+        if (type == double.class)
+            return((Double)value + 1.5);
+        if (type == String.class)
+            return(value + "_changed");
+        return(null);
+    }
+}